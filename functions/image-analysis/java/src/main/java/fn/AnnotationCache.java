@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fn;
+
+import com.google.cloud.firestore.DocumentReference;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import analysis.CachedAnnotations;
+import analysis.SharedClients;
+
+/**
+ * The function's annotation cache: a per-instance {@link CachedAnnotations} LRU in front of the
+ * annotationCache Firestore collection, which the service reads and writes too.
+ */
+final class AnnotationCache {
+    private static final Logger logger = Logger.getLogger(AnnotationCache.class.getName());
+
+    private static final long MAX_BYTES = 8L * 1024 * 1024;
+    // the instance may be throttled once the function returns, so the write gets a short wait
+    private static final long WRITE_TIMEOUT_MILLIS = 500;
+
+    private static final CachedAnnotations memory = new CachedAnnotations(MAX_BYTES);
+
+    private AnnotationCache() {
+    }
+
+    static CachedAnnotations.Entry get(String key) throws InterruptedException {
+        if (key == null) {
+            return null;
+        }
+        CachedAnnotations.Entry cached = memory.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        try {
+            cached = CachedAnnotations.fromSnapshot(document(key).get().get());
+            if (cached != null) {
+                memory.put(key, cached);
+            }
+            return cached;
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Annotation cache lookup failed, calling Vision", e.getCause());
+            return null;
+        }
+    }
+
+    static void put(String key, CachedAnnotations.Entry entry) throws InterruptedException {
+        if (key == null) {
+            return;
+        }
+        memory.put(key, entry);
+        try {
+            document(key).set(CachedAnnotations.documentData(entry)).get(WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.info("Cached annotations still being persisted after " + WRITE_TIMEOUT_MILLIS + " ms, not waiting");
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Could not persist cached annotations", e.getCause());
+        }
+    }
+
+    private static DocumentReference document(String key) {
+        return SharedClients.firestore().collection(CachedAnnotations.COLLECTION)
+            .document(CachedAnnotations.documentId(key));
+    }
+}
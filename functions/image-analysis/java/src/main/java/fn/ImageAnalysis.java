@@ -17,16 +17,17 @@ package fn;
 
 import com.google.cloud.functions.*;
 import com.google.cloud.vision.v1.*;
-import com.google.cloud.vision.v1.Feature.Type;
 import com.google.cloud.firestore.*;
 import com.google.api.core.ApiFuture;
 
 import java.io.*;
 import java.util.*;
-import java.util.stream.*;
 import java.util.concurrent.*;
 import java.util.logging.Logger;
 
+import analysis.CachedAnnotations;
+import analysis.ImageAnnotations;
+import analysis.SharedClients;
 import fn.ImageAnalysis.GCSEvent;
 
 public class ImageAnalysis implements BackgroundFunction<GCSEvent> {
@@ -40,112 +41,62 @@ public class ImageAnalysis implements BackgroundFunction<GCSEvent> {
 
         logger.info("New picture uploaded " + fileName);
 
-        try (ImageAnnotatorClient vision = ImageAnnotatorClient.create()) {
-            List<AnnotateImageRequest> requests = new ArrayList<>();
-            
-            ImageSource imageSource = ImageSource.newBuilder()
-                .setGcsImageUri("gs://" + bucketName + "/" + fileName)
-                .build();
-
-            Image image = Image.newBuilder()
-                .setSource(imageSource)
-                .build();
-
-            Feature featureLabel = Feature.newBuilder()
-                .setType(Type.LABEL_DETECTION)
-                .build();
-            Feature featureImageProps = Feature.newBuilder()
-                .setType(Type.IMAGE_PROPERTIES)
-                .build();
-            Feature featureSafeSearch = Feature.newBuilder()
-                .setType(Type.SAFE_SEARCH_DETECTION)
-                .build();
-                
-            AnnotateImageRequest request = AnnotateImageRequest.newBuilder()
-                .addFeatures(featureLabel)
-                .addFeatures(featureImageProps)
-                .addFeatures(featureSafeSearch)
-                .setImage(image)
-                .build();
-            
-            requests.add(request);
-
-            logger.info("Calling the Vision API...");
-            BatchAnnotateImagesResponse result = vision.batchAnnotateImages(requests);
-            List<AnnotateImageResponse> responses = result.getResponsesList();
-
-            if (responses.size() == 0) {
-                logger.info("No response received from Vision API.");
+        String contentKey = CachedAnnotations.key(event.md5Hash, event.crc32c, event.size);
+        CachedAnnotations.Entry annotation = AnnotationCache.get(contentKey);
+        if (annotation != null) {
+            logger.info("Reusing cached annotations for " + fileName + " (" + contentKey + ")");
+        } else {
+            annotation = annotate(bucketName, fileName);
+            if (annotation == null) {
                 return;
             }
+            AnnotationCache.put(contentKey, annotation);
+        }
 
-            AnnotateImageResponse response = responses.get(0);
-            if (response.hasError()) {
-                logger.info("Error: " + response.getError().getMessage());
-                return;
-            }
-
-            List<String> labels = response.getLabelAnnotationsList().stream()
-                .map(annotation -> annotation.getDescription())
-                .collect(Collectors.toList());
-            logger.info("Annotations found:");
-            for (String label: labels) {
-                logger.info("- " + label);
-            }
-
-            String mainColor = "#FFFFFF";
-            ImageProperties imgProps = response.getImagePropertiesAnnotation();
-            if (imgProps.hasDominantColors()) {
-                DominantColorsAnnotation colorsAnn = imgProps.getDominantColors();
-                ColorInfo colorInfo = colorsAnn.getColors(0);
-
-                mainColor = rgbHex(
-                    colorInfo.getColor().getRed(), 
-                    colorInfo.getColor().getGreen(), 
-                    colorInfo.getColor().getBlue());
-
-                logger.info("Color: " + mainColor);
-            }
-
-            boolean isSafe = false;
-            if (response.hasSafeSearchAnnotation()) {
-                SafeSearchAnnotation safeSearch = response.getSafeSearchAnnotation();
-
-                isSafe = Stream.of(
-                    safeSearch.getAdult(), safeSearch.getMedical(), safeSearch.getRacy(),
-                    safeSearch.getSpoof(), safeSearch.getViolence())
-                .allMatch( likelihood -> 
-                    likelihood != Likelihood.LIKELY && likelihood != Likelihood.VERY_LIKELY
-                );
+        // Saving result to Firestore
+        if (annotation.safe) {
+            DocumentReference doc = SharedClients.firestore()
+                .collection(ImageAnnotations.PICTURES_COLLECTION).document(fileName);
 
-                logger.info("Safe? " + isSafe);
-            }
+            ApiFuture<WriteResult> writeResult =
+                doc.set(ImageAnnotations.pictureData(annotation.labels, annotation.mainColor), SetOptions.merge());
 
-            // Saving result to Firestore
-            if (isSafe) {
-                FirestoreOptions firestoreOptions = FirestoreOptions.getDefaultInstance();
-                Firestore pictureStore = firestoreOptions.getService();
+            logger.info("Picture metadata saved in Firestore at " + writeResult.get().getUpdateTime());
+        }
+    }
 
-                DocumentReference doc = pictureStore.collection("pictures").document(fileName);
+    private static CachedAnnotations.Entry annotate(String bucketName, String fileName) throws IOException {
+        ImageAnnotatorClient vision = SharedClients.vision();
+        AnnotateImageRequest request = ImageAnnotations.request(bucketName, fileName);
 
-                Map<String, Object> data = new HashMap<>();
-                data.put("labels", labels);
-                data.put("color", mainColor);
-                data.put("created", new Date());
+        logger.info("Calling the Vision API...");
+        BatchAnnotateImagesResponse result = vision.batchAnnotateImages(Collections.singletonList(request));
+        List<AnnotateImageResponse> responses = result.getResponsesList();
 
-                ApiFuture<WriteResult> writeResult = doc.set(data, SetOptions.merge());
+        if (responses.size() == 0) {
+            logger.info("No response received from Vision API.");
+            return null;
+        }
 
-                logger.info("Picture metadata saved in Firestore at " + writeResult.get().getUpdateTime());
-            }
+        AnnotateImageResponse response = responses.get(0);
+        if (response.hasError()) {
+            logger.info("Error: " + response.getError().getMessage());
+            return null;
         }
-    }
 
-    private static String rgbHex(float red, float green, float blue) {
-        return String.format("#%02x%02x%02x", (int)red, (int)green, (int)blue);
+        List<String> labels = ImageAnnotations.labels(response);
+        String mainColor = ImageAnnotations.mainColor(response);
+        boolean isSafe = ImageAnnotations.isSafe(response);
+        logger.info("Annotations found: " + labels + ", color: " + mainColor + ", safe? " + isSafe);
+
+        return new CachedAnnotations.Entry(labels, mainColor, isSafe);
     }
 
     public static class GCSEvent {
         String bucket;
         String name;
+        String md5Hash;
+        String crc32c;
+        String size;
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fn;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Calls the function the way a single instance sees a stream of uploads: the first invocation
+ * creates the shared clients, every later one runs warm. Events carry no hashes, so each
+ * invocation goes to Vision and Firestore instead of the annotation cache.
+ *
+ * Runs against real services with application default credentials:
+ *
+ *   BENCHMARK_BUCKET=my-pictures BENCHMARK_OBJECT=cat.jpg \
+ *     mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=fn.WarmInvocationBenchmark
+ *
+ * BENCHMARK_INVOCATIONS sets the number of invocations, 50 by default.
+ */
+public class WarmInvocationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String bucket = requiredEnv("BENCHMARK_BUCKET");
+        String object = requiredEnv("BENCHMARK_OBJECT");
+        String invocationsEnv = System.getenv("BENCHMARK_INVOCATIONS");
+        int invocations = invocationsEnv == null ? 50 : Integer.parseInt(invocationsEnv);
+
+        // per-invocation INFO logging would dominate the timings
+        Logger.getLogger("fn").setLevel(Level.WARNING);
+
+        ImageAnalysis function = new ImageAnalysis();
+        long[] nanos = new long[invocations];
+        for (int i = 0; i < invocations; i++) {
+            ImageAnalysis.GCSEvent event = new ImageAnalysis.GCSEvent();
+            event.bucket = bucket;
+            event.name = object;
+
+            long start = System.nanoTime();
+            function.accept(event, null);
+            nanos[i] = System.nanoTime() - start;
+        }
+
+        long[] warm = Arrays.copyOfRange(nanos, 1, nanos.length);
+        Arrays.sort(warm);
+        System.out.println(String.format("first invocation: %.1f ms", millis(nanos[0])));
+        if (warm.length > 0) {
+            System.out.println(String.format(
+                "warm invocations (%d): p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                warm.length, millis(percentile(warm, 0.5)), millis(percentile(warm, 0.9)),
+                millis(percentile(warm, 0.99)), millis(warm[warm.length - 1])));
+        }
+        System.exit(0);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static String requiredEnv(String name) {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException(name + " must be set");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package analysis;
+
+import java.util.Arrays;
+
+/**
+ * BK-tree over 64-bit perceptual hashes under Hamming distance, for finding the closest stored
+ * hash within a radius without comparing against every entry. Each hash carries an int value,
+ * typically an index into the caller's own list.
+ *
+ * Nodes live in parallel primitive arrays: a node's children are a linked list through
+ * firstChild and nextSibling, each labelled with its distance to the parent. Not thread-safe.
+ */
+public final class BkTree {
+
+    private long[] hashes = new long[64];
+    private int[] values = new int[64];
+    private int[] firstChild = new int[64];
+    private int[] nextSibling = new int[64];
+    private byte[] parentDistance = new byte[64];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    /** Adds a hash; an identical hash already in the tree gets the new value. */
+    public void add(long hash, int value) {
+        if (size == 0) {
+            append(hash, value, 0);
+            return;
+        }
+        int node = 0;
+        while (true) {
+            int distance = PerceptualHash.distance(hash, hashes[node]);
+            if (distance == 0) {
+                values[node] = value;
+                return;
+            }
+            int child = firstChild[node];
+            while (child != -1 && parentDistance[child] != distance) {
+                child = nextSibling[child];
+            }
+            if (child == -1) {
+                int added = append(hash, value, distance);
+                nextSibling[added] = firstChild[node];
+                firstChild[node] = added;
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /** Returns the value of the closest hash at most maxDistance bits away, or -1 if there is none. */
+    public int nearest(long hash, int maxDistance) {
+        if (size == 0) {
+            return -1;
+        }
+        int best = -1;
+        int radius = maxDistance;
+        int[] stack = new int[16];
+        int depth = 0;
+        stack[depth++] = 0;
+        while (depth > 0) {
+            int node = stack[--depth];
+            int distance = PerceptualHash.distance(hash, hashes[node]);
+            if (distance <= radius && (best == -1 || distance < PerceptualHash.distance(hash, hashes[best]))) {
+                best = node;
+                // nothing further away than the best match so far is of interest
+                radius = distance;
+            }
+            // triangle inequality: only children whose edge is within radius of distance can match
+            for (int child = firstChild[node]; child != -1; child = nextSibling[child]) {
+                if (Math.abs(parentDistance[child] - distance) <= radius) {
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    }
+                    stack[depth++] = child;
+                }
+            }
+        }
+        return best == -1 ? -1 : values[best];
+    }
+
+    private int append(long hash, int value, int distance) {
+        if (size == hashes.length) {
+            int capacity = size * 2;
+            hashes = Arrays.copyOf(hashes, capacity);
+            values = Arrays.copyOf(values, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            parentDistance = Arrays.copyOf(parentDistance, capacity);
+        }
+        hashes[size] = hash;
+        values[size] = value;
+        firstChild[size] = -1;
+        nextSibling[size] = -1;
+        parentDistance[size] = (byte) distance;
+        return size++;
+    }
+}
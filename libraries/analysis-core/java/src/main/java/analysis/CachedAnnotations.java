@@ -0,0 +1,143 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package analysis;
+
+import com.google.cloud.firestore.DocumentSnapshot;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vision results keyed by object content, shared by the function's and the service's annotation
+ * caches so both read and write the same annotationCache documents.
+ *
+ * Keys come from the hashes the storage event already carries: md5Hash when present, otherwise
+ * crc32c together with the object size. An instance is the in-memory tier, an LRU bounded by the
+ * estimated size of its entries; the Firestore tier is left to the caller.
+ */
+public final class CachedAnnotations {
+
+    public static final String COLLECTION = "annotationCache";
+
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    private final long maxBytes;
+
+    // guarded by itself, in access order for LRU eviction
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long currentBytes;
+
+    public CachedAnnotations(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** Builds the cache key for an object, or returns null if the event carries no usable hash. */
+    public static String key(String md5Hash, String crc32c, Object size) {
+        if (md5Hash != null && !md5Hash.isEmpty()) {
+            return "md5:" + md5Hash;
+        }
+        if (crc32c != null && !crc32c.isEmpty() && size != null) {
+            return "crc32c:" + crc32c + ":" + size;
+        }
+        return null;
+    }
+
+    /** The annotationCache document ID for a key. */
+    public static String documentId(String key) {
+        // base64 hashes may contain '/', which is not allowed in document IDs
+        return key.replace('/', '_');
+    }
+
+    public static Map<String, Object> documentData(Entry entry) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("labels", entry.labels);
+        data.put("color", entry.mainColor);
+        data.put("safe", entry.safe);
+        data.put("created", new Date());
+        return data;
+    }
+
+    /** Reads an annotationCache document, or returns null if it is missing or incomplete. */
+    @SuppressWarnings("unchecked")
+    public static Entry fromSnapshot(DocumentSnapshot snapshot) {
+        if (snapshot == null || !snapshot.exists()) {
+            return null;
+        }
+        List<String> labels = (List<String>) snapshot.get("labels");
+        String color = snapshot.getString("color");
+        Boolean safe = snapshot.getBoolean("safe");
+        if (labels == null || color == null || safe == null) {
+            return null;
+        }
+        return new Entry(labels, color, safe);
+    }
+
+    public Entry get(String key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    public void put(String key, Entry entry) {
+        long weight = weigh(key, entry);
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                currentBytes -= weigh(key, previous);
+            }
+            currentBytes += weight;
+
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Entry> evicted = eldest.next();
+                currentBytes -= weigh(evicted.getKey(), evicted.getValue());
+                eldest.remove();
+            }
+        }
+    }
+
+    /** Estimated size of the entries held in memory. */
+    public long bytes() {
+        synchronized (entries) {
+            return currentBytes;
+        }
+    }
+
+    private static long weigh(String key, Entry entry) {
+        long bytes = ENTRY_OVERHEAD_BYTES + 2L * key.length() + 2L * entry.mainColor.length();
+        for (String label : entry.labels) {
+            bytes += 48 + 2L * label.length();
+        }
+        return bytes;
+    }
+
+    /** Labels, main colour and safe-search verdict of one picture. */
+    public static final class Entry {
+        public final List<String> labels;
+        public final String mainColor;
+        public final boolean safe;
+
+        public Entry(List<String> labels, String mainColor, boolean safe) {
+            this.labels = labels;
+            this.mainColor = mainColor;
+            this.safe = safe;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package analysis;
+
+import java.io.IOException;
+
+/**
+ * Finds the dominant colour of a picture in process, as a stand-in for the first dominant colour
+ * of Vision's IMAGE_PROPERTIES feature.
+ *
+ * The image is decoded with source subsampling, so only about sampleSize x sampleSize pixels are
+ * ever read. Their colours are counted in a histogram of 16 levels per channel, and the answer is
+ * the average colour of the pixels in the fullest bucket. Everything runs over primitive arrays.
+ */
+public final class DominantColors {
+
+    private static final int BITS_PER_CHANNEL = 4;
+    private static final int BUCKETS = 1 << (3 * BITS_PER_CHANNEL);
+    private static final int SHIFT = 8 - BITS_PER_CHANNEL;
+
+    private DominantColors() {
+    }
+
+    /** Decodes a sample of the image and returns its dominant colour as a hex string. */
+    public static String mainColor(byte[] imageBytes, int sampleSize) throws IOException {
+        return mainColor(ImageSamples.argb(ImageSamples.decode(imageBytes, sampleSize)));
+    }
+
+    /** Returns the dominant colour of the given ARGB pixels; transparent pixels are ignored. */
+    public static String mainColor(int[] argb) {
+        int[] counts = new int[BUCKETS];
+        long[] reds = new long[BUCKETS];
+        long[] greens = new long[BUCKETS];
+        long[] blues = new long[BUCKETS];
+
+        for (int pixel : argb) {
+            if ((pixel >>> 24) < 0x80) {
+                continue;
+            }
+            int red = (pixel >> 16) & 0xFF;
+            int green = (pixel >> 8) & 0xFF;
+            int blue = pixel & 0xFF;
+            int bucket = ((red >> SHIFT) << (2 * BITS_PER_CHANNEL)) | ((green >> SHIFT) << BITS_PER_CHANNEL)
+                | (blue >> SHIFT);
+            counts[bucket]++;
+            reds[bucket] += red;
+            greens[bucket] += green;
+            blues[bucket] += blue;
+        }
+
+        int fullest = 0;
+        for (int bucket = 1; bucket < BUCKETS; bucket++) {
+            if (counts[bucket] > counts[fullest]) {
+                fullest = bucket;
+            }
+        }
+        int count = counts[fullest];
+        if (count == 0) {
+            return ImageAnnotations.DEFAULT_COLOR;
+        }
+        return ImageAnnotations.rgbHex(reds[fullest] / count, greens[fullest] / count, blues[fullest] / count);
+    }
+}
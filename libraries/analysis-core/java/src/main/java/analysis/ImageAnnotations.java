@@ -0,0 +1,137 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package analysis;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.ColorInfo;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.cloud.vision.v1.Feature;
+import com.google.cloud.vision.v1.Feature.Type;
+import com.google.cloud.vision.v1.Image;
+import com.google.cloud.vision.v1.ImageProperties;
+import com.google.cloud.vision.v1.ImageSource;
+import com.google.cloud.vision.v1.Likelihood;
+import com.google.cloud.vision.v1.SafeSearchAnnotation;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Vision request the workshop sends for every uploaded picture, and the mapping of its response
+ * to the labels, dominant colour and safe-search verdict stored in the pictures collection.
+ * Shared by the image-analysis Cloud Function and Cloud Run service.
+ */
+public final class ImageAnnotations {
+
+    public static final String PICTURES_COLLECTION = "pictures";
+
+    public static final String DEFAULT_COLOR = "#FFFFFF";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // immutable protos, built once instead of on every request
+    private static final Feature LABELS = Feature.newBuilder().setType(Type.LABEL_DETECTION).build();
+    private static final Feature IMAGE_PROPERTIES = Feature.newBuilder().setType(Type.IMAGE_PROPERTIES).build();
+    private static final Feature SAFE_SEARCH = Feature.newBuilder().setType(Type.SAFE_SEARCH_DETECTION).build();
+
+    private ImageAnnotations() {
+    }
+
+    public static AnnotateImageRequest request(String bucketName, String fileName) {
+        return request(bucketName, fileName, true);
+    }
+
+    /**
+     * Without image properties the request carries only labels and safe search, for callers that
+     * take the main colour from {@link DominantColors} instead.
+     */
+    public static AnnotateImageRequest request(String bucketName, String fileName, boolean imageProperties) {
+        Image image = Image.newBuilder()
+            .setSource(ImageSource.newBuilder().setGcsImageUri("gs://" + bucketName + "/" + fileName))
+            .build();
+        AnnotateImageRequest.Builder request = AnnotateImageRequest.newBuilder().addFeatures(LABELS);
+        if (imageProperties) {
+            request.addFeatures(IMAGE_PROPERTIES);
+        }
+        return request
+            .addFeatures(SAFE_SEARCH)
+            .setImage(image)
+            .build();
+    }
+
+    public static List<String> labels(AnnotateImageResponse response) {
+        List<EntityAnnotation> annotations = response.getLabelAnnotationsList();
+        List<String> labels = new ArrayList<>(annotations.size());
+        for (int i = 0; i < annotations.size(); i++) {
+            labels.add(annotations.get(i).getDescription());
+        }
+        return labels;
+    }
+
+    public static String mainColor(AnnotateImageResponse response) {
+        ImageProperties imgProps = response.getImagePropertiesAnnotation();
+        if (!imgProps.hasDominantColors() || imgProps.getDominantColors().getColorsCount() == 0) {
+            return DEFAULT_COLOR;
+        }
+        ColorInfo colorInfo = imgProps.getDominantColors().getColors(0);
+        return rgbHex(
+            colorInfo.getColor().getRed(),
+            colorInfo.getColor().getGreen(),
+            colorInfo.getColor().getBlue());
+    }
+
+    /** A picture is safe when Vision returned a safe-search verdict and no category is likely. */
+    public static boolean isSafe(AnnotateImageResponse response) {
+        if (!response.hasSafeSearchAnnotation()) {
+            return false;
+        }
+        SafeSearchAnnotation safeSearch = response.getSafeSearchAnnotation();
+        return !likely(safeSearch.getAdult()) && !likely(safeSearch.getMedical()) && !likely(safeSearch.getRacy())
+            && !likely(safeSearch.getSpoof()) && !likely(safeSearch.getViolence());
+    }
+
+    private static boolean likely(Likelihood likelihood) {
+        return likelihood == Likelihood.LIKELY || likelihood == Likelihood.VERY_LIKELY;
+    }
+
+    public static String rgbHex(float red, float green, float blue) {
+        char[] hex = new char[7];
+        hex[0] = '#';
+        appendHex(hex, 1, (int) red);
+        appendHex(hex, 3, (int) green);
+        appendHex(hex, 5, (int) blue);
+        return new String(hex);
+    }
+
+    // same output as %02x for channel values 0-255
+    private static void appendHex(char[] hex, int offset, int value) {
+        hex[offset] = HEX_DIGITS[(value >> 4) & 0xF];
+        hex[offset + 1] = HEX_DIGITS[value & 0xF];
+    }
+
+    /** The fields merged into a pictures document once a picture is found safe. */
+    public static Map<String, Object> pictureData(List<String> labels, String mainColor) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("labels", labels);
+        data.put("color", mainColor);
+        data.put("created", new Date());
+        return data;
+    }
+}
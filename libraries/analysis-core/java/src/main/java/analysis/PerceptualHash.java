@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package analysis;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * 64-bit difference hash (dHash) of a picture. The picture is reduced to a 9 x 8 grid of average
+ * brightness, and each bit records whether a cell is brighter than its right-hand neighbour. Re-encoded,
+ * resized and lightly cropped copies of a photo land within a few bits of each other, while
+ * unrelated photos differ in about half of them.
+ */
+public final class PerceptualHash {
+
+    private static final int COLUMNS = 9;
+    private static final int ROWS = 8;
+
+    // big enough that subsampling aliasing does not flip bits between resized copies
+    private static final int SAMPLE_SIZE = 144;
+
+    private PerceptualHash() {
+    }
+
+    public static long dHash(byte[] imageBytes) throws IOException {
+        BufferedImage sample = ImageSamples.decode(imageBytes, SAMPLE_SIZE);
+        return dHash(ImageSamples.argb(sample), sample.getWidth(), sample.getHeight());
+    }
+
+    public static long dHash(int[] argb, int width, int height) {
+        long[] brightness = new long[COLUMNS * ROWS];
+        for (int row = 0; row < ROWS; row++) {
+            int top = row * height / ROWS;
+            int bottom = Math.max(top + 1, (row + 1) * height / ROWS);
+            for (int column = 0; column < COLUMNS; column++) {
+                int left = column * width / COLUMNS;
+                int right = Math.max(left + 1, (column + 1) * width / COLUMNS);
+                brightness[row * COLUMNS + column] = averageLuma(argb, width, left, Math.min(right, width), top,
+                    Math.min(bottom, height));
+            }
+        }
+
+        long hash = 0;
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS - 1; column++) {
+                hash <<= 1;
+                if (brightness[row * COLUMNS + column] > brightness[row * COLUMNS + column + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /** Number of differing bits between two hashes. */
+    public static int distance(long first, long second) {
+        return Long.bitCount(first ^ second);
+    }
+
+    // ITU-R BT.601 luma scaled by 1000, averaged over the cell
+    private static long averageLuma(int[] argb, int width, int left, int right, int top, int bottom) {
+        long sum = 0;
+        int count = 0;
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                int pixel = argb[y * width + x];
+                sum += 299 * ((pixel >> 16) & 0xFF) + 587 * ((pixel >> 8) & 0xFF) + 114 * (pixel & 0xFF);
+                count++;
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+}
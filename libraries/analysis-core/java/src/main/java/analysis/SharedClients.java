@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package analysis;
+
+import com.google.api.gax.grpc.ChannelPoolSettings;
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.cloud.vision.v1.ImageAnnotatorSettings;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.threeten.bp.Duration;
+
+/**
+ * Process-wide Vision and Firestore clients, created on first use and kept for the life of the
+ * process, so warm Cloud Function invocations skip channel set-up and credential loading.
+ * Vision pool sizing can be tuned with the VISION_MIN_CHANNELS, VISION_MAX_CHANNELS and
+ * VISION_MAX_RPCS_PER_CHANNEL environment variables.
+ *
+ * The Spring service keeps its own configurable client beans and does not use this class.
+ */
+public final class SharedClients {
+    private static final Logger logger = Logger.getLogger(SharedClients.class.getName());
+
+    private static volatile ImageAnnotatorClient vision;
+    private static volatile Firestore firestore;
+
+    private SharedClients() {
+    }
+
+    public static ImageAnnotatorClient vision() throws IOException {
+        ImageAnnotatorClient current = vision;
+        if (current == null) {
+            synchronized (SharedClients.class) {
+                current = vision;
+                if (current == null) {
+                    current = ImageAnnotatorClient.create(visionSettings());
+                    vision = current;
+                    Runtime.getRuntime().addShutdownHook(new Thread(SharedClients::closeVision));
+                    logger.info("Vision client created");
+                }
+            }
+        }
+        return current;
+    }
+
+    public static Firestore firestore() {
+        Firestore current = firestore;
+        if (current == null) {
+            synchronized (SharedClients.class) {
+                current = firestore;
+                if (current == null) {
+                    current = FirestoreOptions.getDefaultInstance().getService();
+                    firestore = current;
+                    Runtime.getRuntime().addShutdownHook(new Thread(SharedClients::closeFirestore));
+                    logger.info("Firestore client created");
+                }
+            }
+        }
+        return current;
+    }
+
+    private static ImageAnnotatorSettings visionSettings() throws IOException {
+        int minChannels = intEnv("VISION_MIN_CHANNELS", 1);
+        InstantiatingGrpcChannelProvider channelProvider =
+            ImageAnnotatorSettings.defaultGrpcTransportProviderBuilder()
+                .setChannelPoolSettings(ChannelPoolSettings.builder()
+                    .setInitialChannelCount(minChannels)
+                    .setMinChannelCount(minChannels)
+                    .setMaxChannelCount(intEnv("VISION_MAX_CHANNELS", 4))
+                    .setMaxRpcsPerChannel(intEnv("VISION_MAX_RPCS_PER_CHANNEL", 50))
+                    .build())
+                .setKeepAliveTime(Duration.ofSeconds(60))
+                .setKeepAliveTimeout(Duration.ofSeconds(20))
+                .setKeepAliveWithoutCalls(true)
+                .build();
+
+        return ImageAnnotatorSettings.newBuilder()
+            .setTransportChannelProvider(channelProvider)
+            .build();
+    }
+
+    private static void closeVision() {
+        ImageAnnotatorClient current = vision;
+        if (current == null) {
+            return;
+        }
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(5, TimeUnit.SECONDS)) {
+                current.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeFirestore() {
+        Firestore current = firestore;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.close();
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Could not close the Firestore client", e);
+        }
+    }
+
+    private static int intEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package analysis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class BkTreeTests {
+
+    @Test
+    void nearestMatchesALinearScan() {
+        Random random = new Random(3);
+        long[] hashes = new long[5000];
+        BkTree tree = new BkTree();
+        for (int i = 0; i < hashes.length; i++) {
+            // clusters of near-identical hashes, as re-uploads produce
+            hashes[i] = i % 10 == 0
+                ? random.nextLong()
+                : flipBits(hashes[i - 1 - random.nextInt(i % 10)], random, 1 + random.nextInt(6));
+            tree.add(hashes[i], i);
+        }
+
+        for (int query = 0; query < 500; query++) {
+            long probe = flipBits(hashes[random.nextInt(hashes.length)], random, random.nextInt(10));
+            for (int maxDistance : new int[] {0, 3, 8}) {
+                int found = tree.nearest(probe, maxDistance);
+                int expected = linearNearest(hashes, probe, maxDistance);
+                if (expected == -1) {
+                    assertEquals(-1, found);
+                } else {
+                    assertEquals(PerceptualHash.distance(probe, hashes[expected]),
+                        PerceptualHash.distance(probe, hashes[found]));
+                }
+            }
+        }
+    }
+
+    @Test
+    void sameHashKeepsTheLatestValue() {
+        BkTree tree = new BkTree();
+        assertEquals(-1, tree.nearest(42L, 64));
+        tree.add(42L, 1);
+        tree.add(42L, 2);
+
+        assertEquals(1, tree.size());
+        assertEquals(2, tree.nearest(43L, 1));
+        assertEquals(-1, tree.nearest(~42L, 8));
+    }
+
+    private static int linearNearest(long[] hashes, long probe, int maxDistance) {
+        int best = -1;
+        for (int i = 0; i < hashes.length; i++) {
+            int distance = PerceptualHash.distance(probe, hashes[i]);
+            if (distance <= maxDistance && (best == -1 || distance < PerceptualHash.distance(probe, hashes[best]))) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static long flipBits(long hash, Random random, int bits) {
+        for (int i = 0; i < bits; i++) {
+            hash ^= 1L << random.nextInt(64);
+        }
+        return hash;
+    }
+}
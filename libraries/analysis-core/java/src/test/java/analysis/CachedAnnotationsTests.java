@@ -0,0 +1,53 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package analysis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class CachedAnnotationsTests {
+
+    @Test
+    void keyPrefersMd5OverCrc32c() {
+        assertEquals("md5:abc==", CachedAnnotations.key("abc==", "xyz==", "42"));
+        assertEquals("crc32c:xyz==:42", CachedAnnotations.key("", "xyz==", "42"));
+        assertNull(CachedAnnotations.key(null, "xyz==", null));
+        assertEquals("md5:a_b", CachedAnnotations.documentId("md5:a/b"));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedEntry() {
+        CachedAnnotations.Entry cat = new CachedAnnotations.Entry(List.of("Cat"), "#7092be", true);
+        CachedAnnotations.Entry dog = new CachedAnnotations.Entry(List.of("Dog"), "#7092be", true);
+        CachedAnnotations.Entry bird = new CachedAnnotations.Entry(List.of("Bird"), "#7092be", true);
+        // room for two of these entries, not three
+        CachedAnnotations cache = new CachedAnnotations(500);
+
+        cache.put("md5:a", cat);
+        cache.put("md5:b", dog);
+        assertSame(cat, cache.get("md5:a"));
+        cache.put("md5:c", bird);
+
+        assertNull(cache.get("md5:b"));
+        assertSame(cat, cache.get("md5:a"));
+        assertSame(bird, cache.get("md5:c"));
+    }
+}
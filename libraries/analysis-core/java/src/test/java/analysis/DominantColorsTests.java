@@ -0,0 +1,99 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package analysis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+public class DominantColorsTests {
+
+    // per-channel distance accepted between the extracted colour and the painted one
+    private static final int TOLERANCE = 12;
+
+    @Test
+    void largestNoisyAreaWins() throws IOException {
+        Random random = new Random(7);
+        BufferedImage image = new BufferedImage(1600, 1200, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                Color base = x < 960 ? new Color(40, 110, 200) : y < 800 ? new Color(230, 180, 60) : Color.BLACK;
+                image.setRGB(x, y, jitter(base, random, 6));
+            }
+        }
+
+        assertClose("#2870c8", DominantColors.mainColor(encode(image, "png"), 128));
+        assertClose("#2870c8", DominantColors.mainColor(encode(image, "jpg"), 128));
+    }
+
+    @Test
+    void gradientLandsInTheFullestBand() {
+        int[] pixels = new int[256 * 64];
+        for (int i = 0; i < pixels.length; i++) {
+            int level = (i % 256) < 160 ? 200 : i % 256;
+            pixels[i] = 0xFF000000 | (level << 16) | (level << 8) | level;
+        }
+
+        assertClose("#c8c8c8", DominantColors.mainColor(pixels));
+    }
+
+    @Test
+    void transparentPixelsAreIgnored() {
+        int[] pixels = new int[100];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i < 90 ? 0x00FF0000 : 0xFF00FF00;
+        }
+
+        assertEquals("#00ff00", DominantColors.mainColor(pixels));
+        assertEquals(ImageAnnotations.DEFAULT_COLOR, DominantColors.mainColor(new int[0]));
+    }
+
+    private static int jitter(Color base, Random random, int amount) {
+        return new Color(
+            clamp(base.getRed() + random.nextInt(2 * amount + 1) - amount),
+            clamp(base.getGreen() + random.nextInt(2 * amount + 1) - amount),
+            clamp(base.getBlue() + random.nextInt(2 * amount + 1) - amount)).getRGB();
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+
+    private static void assertClose(String expected, String actual) {
+        for (int channel = 0; channel < 3; channel++) {
+            int offset = 1 + 2 * channel;
+            int want = Integer.parseInt(expected.substring(offset, offset + 2), 16);
+            int got = Integer.parseInt(actual.substring(offset, offset + 2), 16);
+            assertTrue(Math.abs(want - got) <= TOLERANCE, "expected about " + expected + " but got " + actual);
+        }
+    }
+}
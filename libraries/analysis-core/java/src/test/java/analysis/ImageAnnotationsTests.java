@@ -0,0 +1,94 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package analysis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.ColorInfo;
+import com.google.cloud.vision.v1.DominantColorsAnnotation;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.cloud.vision.v1.Feature.Type;
+import com.google.cloud.vision.v1.ImageProperties;
+import com.google.cloud.vision.v1.Likelihood;
+import com.google.cloud.vision.v1.SafeSearchAnnotation;
+import com.google.type.Color;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ImageAnnotationsTests {
+
+    @Test
+    void requestAsksForLabelsColorsAndSafeSearch() {
+        AnnotateImageRequest request = ImageAnnotations.request("bucket", "cat.jpg");
+
+        assertEquals("gs://bucket/cat.jpg", request.getImage().getSource().getGcsImageUri());
+        assertEquals(3, request.getFeaturesCount());
+        assertEquals(Type.LABEL_DETECTION, request.getFeatures(0).getType());
+        assertEquals(Type.IMAGE_PROPERTIES, request.getFeatures(1).getType());
+        assertEquals(Type.SAFE_SEARCH_DETECTION, request.getFeatures(2).getType());
+    }
+
+    @Test
+    void rgbHexMatchesFormat() {
+        for (int value = 0; value < 256; value++) {
+            assertEquals(String.format("#%02x%02x%02x", value, 255 - value, value / 2),
+                ImageAnnotations.rgbHex(value, 255 - value, value / 2));
+        }
+        assertEquals("#7092be", ImageAnnotations.rgbHex(112.7f, 146.2f, 190f));
+    }
+
+    @Test
+    void responseIsMapped() {
+        AnnotateImageResponse response = AnnotateImageResponse.newBuilder()
+            .addLabelAnnotations(EntityAnnotation.newBuilder().setDescription("Cat"))
+            .addLabelAnnotations(EntityAnnotation.newBuilder().setDescription("Whiskers"))
+            .setImagePropertiesAnnotation(ImageProperties.newBuilder()
+                .setDominantColors(DominantColorsAnnotation.newBuilder()
+                    .addColors(ColorInfo.newBuilder()
+                        .setColor(Color.newBuilder().setRed(112f).setGreen(146f).setBlue(190f)))))
+            .build();
+
+        assertEquals(List.of("Cat", "Whiskers"), ImageAnnotations.labels(response));
+        assertEquals("#7092be", ImageAnnotations.mainColor(response));
+        assertEquals(ImageAnnotations.DEFAULT_COLOR,
+            ImageAnnotations.mainColor(AnnotateImageResponse.getDefaultInstance()));
+    }
+
+    @Test
+    void likelyContentIsUnsafe() {
+        assertTrue(ImageAnnotations.isSafe(response(Likelihood.POSSIBLE)));
+        assertFalse(ImageAnnotations.isSafe(response(Likelihood.LIKELY)));
+        assertFalse(ImageAnnotations.isSafe(response(Likelihood.VERY_LIKELY)));
+        assertFalse(ImageAnnotations.isSafe(AnnotateImageResponse.getDefaultInstance()));
+    }
+
+    private static AnnotateImageResponse response(Likelihood violence) {
+        return AnnotateImageResponse.newBuilder()
+            .setSafeSearchAnnotation(SafeSearchAnnotation.newBuilder()
+                .setAdult(Likelihood.VERY_UNLIKELY)
+                .setMedical(Likelihood.UNLIKELY)
+                .setRacy(Likelihood.POSSIBLE)
+                .setSpoof(Likelihood.VERY_UNLIKELY)
+                .setViolence(violence))
+            .build();
+    }
+}
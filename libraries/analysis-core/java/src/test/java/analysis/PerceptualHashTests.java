@@ -0,0 +1,89 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package analysis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+public class PerceptualHashTests {
+
+    @Test
+    void copiesStayCloseAndOtherPicturesDoNot() throws IOException {
+        BufferedImage photo = scene(new Random(1), 1200, 900);
+        long original = PerceptualHash.dHash(encode(photo, "png"));
+
+        long reencoded = PerceptualHash.dHash(encode(photo, "jpg"));
+        long resized = PerceptualHash.dHash(encode(resize(photo, 400, 300), "jpg"));
+        long cropped = PerceptualHash.dHash(encode(photo.getSubimage(24, 18, 1152, 864), "jpg"));
+        long other = PerceptualHash.dHash(encode(scene(new Random(2), 1200, 900), "jpg"));
+
+        // the service's default near-duplicate distance is 8
+        assertTrue(PerceptualHash.distance(original, reencoded) <= 8, "re-encoded");
+        assertTrue(PerceptualHash.distance(original, resized) <= 8, "resized");
+        assertTrue(PerceptualHash.distance(original, cropped) <= 8, "cropped");
+        assertTrue(PerceptualHash.distance(original, other) > 16, "unrelated");
+    }
+
+    @Test
+    void distanceCountsDifferingBits() {
+        assertEquals(0, PerceptualHash.distance(0x5AL, 0x5AL));
+        assertEquals(64, PerceptualHash.distance(0L, -1L));
+        assertEquals(2, PerceptualHash.distance(0b1010L, 0b0110L));
+    }
+
+    // a few large soft shapes, the kind of structure dHash keys on
+    private static BufferedImage scene(Random random, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+        graphics.fillRect(0, 0, width, height);
+        for (int i = 0; i < 12; i++) {
+            graphics.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            graphics.fillOval(random.nextInt(width) - width / 4, random.nextInt(height) - height / 4,
+                width / 3 + random.nextInt(width / 2), height / 3 + random.nextInt(height / 2));
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    private static BufferedImage resize(BufferedImage source, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(source, 0, 0, width, height, null);
+        graphics.dispose();
+        return target;
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+}
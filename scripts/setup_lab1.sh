@@ -66,9 +66,11 @@ gcloud functions deploy ${SERVICE_NAME} \
 #   --set-env-vars PROJECT_ID=${GOOGLE_CLOUD_PROJECT}
 
 ## Java
+# mvn -f ../libraries/analysis-core/java install
+# mvn -f ../functions/image-analysis/java package
 # gcloud functions deploy ${SERVICE_NAME} \
 #  --region=${REGION} \
-#  --source=../functions/image-analysis/java \
+#  --source=../functions/image-analysis/java/target/deployment \
 #  --runtime java11 \
 #  --entry-point=fn.ImageAnalysis \
 #  --trigger-resource=${BUCKET_NAME} \
@@ -0,0 +1,13 @@
+#!/bin/bash
+# Compares the java2d and jmagick collage engines for 2x2 up to 10x10 grids.
+# Each combination runs in its own JVM so the peak RSS is per engine and grid.
+set -e
+
+mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=target/classpath.txt
+CLASSPATH="target/classes:target/test-classes:$(cat target/classpath.txt)"
+
+for engine in java2d jmagick; do
+  for grid in 2 4 6 8 10; do
+    java -Djmagick.systemclassloader=no -cp "$CLASSPATH" services.MontageBenchmark $engine $grid
+  done
+done
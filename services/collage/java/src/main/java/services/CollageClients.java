@@ -0,0 +1,40 @@
+package services;
+
+import java.io.IOException;
+
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.MetadataConfig;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Firestore and Storage clients shared for the lifetime of the instance, instead of being built
+ * on every collage request.
+ */
+@Configuration
+public class CollageClients {
+
+    String projectID = MetadataConfig.getProjectId();
+
+    @Bean(destroyMethod = "close")
+    public Firestore firestore() throws IOException {
+        return FirestoreOptions.getDefaultInstance().toBuilder()
+            .setProjectId(projectID)
+            .setCredentials(GoogleCredentials.getApplicationDefault())
+            .build().getService();
+    }
+
+    @Bean
+    public Storage storage() throws IOException {
+        return StorageOptions.newBuilder()
+            .setProjectId(projectID)
+            .setCredentials(GoogleCredentials.getApplicationDefault())
+            .build()
+            .getService();
+    }
+}
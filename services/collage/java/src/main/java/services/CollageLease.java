@@ -0,0 +1,76 @@
+package services;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Lease on a Firestore document that lets a single instance render the collage at a time. The
+ * lease expires on its own, so an instance that dies mid-render only blocks the others for the
+ * lease duration.
+ */
+@Component
+public class CollageLease {
+
+    @Value("${collage.lease.enabled:false}")
+    boolean enabled;
+
+    // longer than the slowest expected render
+    @Value("${collage.lease.duration-ms:120000}")
+    long durationMillis;
+
+    @Autowired
+    Firestore firestore;
+
+    private final String holder = UUID.randomUUID().toString();
+
+    /** Takes the lease, returns false if another instance holds an unexpired one. */
+    public boolean acquire() throws Exception {
+        if (!enabled) {
+            return true;
+        }
+        DocumentReference lock = lock();
+        return firestore.runTransaction(transaction -> {
+            DocumentSnapshot snapshot = transaction.get(lock).get();
+            Date now = new Date();
+            if (snapshot.exists() && !holder.equals(snapshot.getString("holder"))) {
+                Date expireAt = snapshot.getDate("expireAt");
+                if (expireAt != null && expireAt.after(now)) {
+                    return false;
+                }
+            }
+            Map<String, Object> data = new HashMap<>();
+            data.put("holder", holder);
+            data.put("expireAt", new Date(now.getTime() + durationMillis));
+            transaction.set(lock, data);
+            return true;
+        }).get();
+    }
+
+    public void release() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        DocumentReference lock = lock();
+        firestore.runTransaction(transaction -> {
+            DocumentSnapshot snapshot = transaction.get(lock).get();
+            if (snapshot.exists() && holder.equals(snapshot.getString("holder"))) {
+                transaction.delete(lock);
+            }
+            return null;
+        }).get();
+    }
+
+    private DocumentReference lock() {
+        return firestore.collection("locks").document("collage");
+    }
+}
@@ -1,33 +1,23 @@
 package services;
 
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
 
-import com.google.api.core.ApiFuture;
-import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.MetadataConfig;
-import com.google.cloud.firestore.Firestore;
-import com.google.cloud.firestore.FirestoreOptions;
-import com.google.cloud.firestore.Query;
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
 import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
-import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
-import magick.ImageInfo;
-import magick.MagickImage;
-import magick.MontageInfo;
-
 @SpringBootApplication
 @RestController
 public class CollageService {
@@ -37,55 +27,148 @@ public class CollageService {
     @Value("${BUCKET_THUMBNAILS}")
     String thumbnails;
 
+    // "java2d" renders in memory, "jmagick" goes through ImageMagick
+    @Value("${collage.engine:java2d}")
+    String engineName;
+
+    @Autowired
+    ThumbnailFetcher thumbnailFetcher;
+
+    @Autowired
+    Map<String, MontageEngine<?>> engines;
+
+    @Autowired
+    TileCache tileCache;
+
+    @Autowired
+    TopPictures topPictures;
+
+    @Autowired
+    Storage storage;
+
+    @Autowired
+    RenderCoordinator renderCoordinator;
+
+    @Autowired
+    CollageUploader collageUploader;
+
+    // outputs of every render, see CollageVariant for the format
+    @Value("${collage.variants:full:0:png,mobile:800:png,preview:240:jpg}")
+    String variantSpec;
+
+    List<CollageVariant> variants;
+
+    // thumbnails in the last uploaded collage, by name and generation
+    volatile List<String> lastRenderedKeys;
+
+    @PostConstruct
+    public void init() {
+        variants = CollageVariant.parse(variantSpec);
+    }
+
     @RequestMapping("/")
     public void collage() throws Exception {
+        renderCoordinator.run(this::renderCollage);
+    }
+
+    private void renderCollage() throws Exception {
     
     // get current Project ID
     System.out.println("Project ID = " + projectID);
     System.out.println("Thumbnails Bucket = " + thumbnails);
 
-    // access collection group in Firestore
-    Firestore fs = FirestoreOptions.getDefaultInstance().toBuilder()
-        .setProjectId(projectID)
-        .setCredentials(GoogleCredentials.getApplicationDefault())
-        .build().getService();
-    ApiFuture<QuerySnapshot> query = fs.collectionGroup("pictures")
-        .whereEqualTo("thumbnail",Boolean.TRUE)
-        .orderBy("created", Query.Direction.DESCENDING)
-        .limit(4).get();
-    List<QueryDocumentSnapshot> documents = query.get().getDocuments();
-    Storage storage = StorageOptions.newBuilder()
-        .setProjectId(projectID)
-        .setCredentials(GoogleCredentials.getApplicationDefault())
-        .build()
-        .getService();
+    // most recent pictures, kept up to date by a snapshot listener
+    List<String> pictureNames = topPictures.names();
 
     // how items did we get
-    int docSize = documents.size();
+    int docSize = pictureNames.size();
 
-    // thumbnails downloading
-    MagickImage[] imagesInfos = new MagickImage[docSize];
+    // thumbnails downloading, decoded as they arrive
     System.out.println(String.format("Collage of %d images:", docSize));
-    for (int pictureIndex = 0 ; pictureIndex < docSize ; pictureIndex++) {
-        Blob pictureBlob = storage.get(thumbnails, documents.get(pictureIndex).getId());
-        String pictureName = pictureBlob.getName();
-        System.out.println(pictureName);
-        pictureBlob.downloadTo(Paths.get("/tmp/" + pictureName));
-        ImageInfo imgInfo = new ImageInfo("/tmp/" + pictureName);
-        imagesInfos[pictureIndex] = new MagickImage(imgInfo);
+    MontageEngine<?> engine = engines.get(engineName);
+    if (engine == null) {
+        throw new IllegalStateException("Unknown collage engine: " + engineName + ", expected one of " + engines.keySet());
     }
-    //picture creation from thumbnails
-    MagickImage collage = new MagickImage(imagesInfos);
-    ImageInfo imageInfo = new ImageInfo("/tmp/collage.png");
-    imageInfo.setTile("2x2");
-    MontageInfo montageInfo = new MontageInfo(imageInfo);
-    collage.setFileName("/tmp/collage.png");
-    collage = collage.montageImages(montageInfo);
-    collage.writeImage(imageInfo);
-    BlobId blobId = BlobId.of(thumbnails, "collage.png");
-    BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setContentType("image/png").build();
-    storage.create(blobInfo, Files.readAllBytes(Paths.get("/tmp/collage.png")));
+    if (pictureNames.isEmpty()) {
+        System.out.println("No thumbnails yet, nothing to render");
+        return;
+    }
+    render(engine, storage, pictureNames);
+ }
+
+  // picture creation from thumbnails, encoded in memory and uploaded by CollageUploader
+  private <T> void render(MontageEngine<T> engine, Storage storage, List<String> pictureNames) throws Exception {
+    // one batch request for the current generations, they identify the thumbnail contents,
+    // along with the collage objects already in the bucket
+    List<BlobId> requested = new ArrayList<>(pictureNames.size() + variants.size());
+    for (String pictureName : pictureNames) {
+        requested.add(BlobId.of(thumbnails, pictureName));
+    }
+    for (CollageVariant variant : variants) {
+        requested.add(BlobId.of(thumbnails, variant.objectName()));
+    }
+    List<Blob> found = storage.get(requested);
+    List<Blob> previous = found.subList(pictureNames.size(), found.size());
+
+    List<BlobId> blobIds = new ArrayList<>(pictureNames.size());
+    List<String> keys = new ArrayList<>(pictureNames.size());
+    for (Blob blob : found.subList(0, pictureNames.size())) {
+        if (blob == null) {
+            continue;
+        }
+        blobIds.add(BlobId.of(thumbnails, blob.getName(), blob.getGeneration()));
+        keys.add(TileCache.key(blob.getName(), blob.getGeneration()));
+    }
+    if (keys.equals(lastRenderedKeys)) {
+        System.out.println("Collage unchanged, skipping render and upload");
+        return;
+    }
+
+    // only thumbnails that are new or changed get downloaded and decoded
+    List<T> tiles = new ArrayList<>(keys.size());
+    List<BlobId> missingIds = new ArrayList<>();
+    List<Integer> missingPositions = new ArrayList<>();
+    for (int i = 0; i < keys.size(); i++) {
+        T tile = tileCache.get(keys.get(i));
+        tiles.add(tile);
+        if (tile == null) {
+            missingIds.add(blobIds.get(i));
+            missingPositions.add(i);
+        }
+    }
+    System.out.println(String.format("%d of %d tiles from cache", keys.size() - missingIds.size(), keys.size()));
+    List<T> fetched = thumbnailFetcher.fetch(storage, missingIds, engine::decode);
+    for (int i = 0; i < fetched.size(); i++) {
+        T tile = fetched.get(i);
+        if (tile != null) {
+            int position = missingPositions.get(i);
+            tiles.set(position, tile);
+            tileCache.put(keys.get(position), tile);
+        }
+    }
+
+    // thumbnails that could not be fetched are left out of the collage
+    List<String> renderedKeys = new ArrayList<>(keys.size());
+    List<T> renderedTiles = new ArrayList<>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+        if (tiles.get(i) != null) {
+            renderedKeys.add(keys.get(i));
+            renderedTiles.add(tiles.get(i));
+        }
+    }
+
+    // variants are encoded in memory, so unchanged ones can be recognised by their MD5 before
+    // anything is sent; on a failed render the previous collage stays in place
+    List<CollageUploader.Buffer> encoded = new ArrayList<>(variants.size());
+    for (int i = 0; i < variants.size(); i++) {
+        encoded.add(new CollageUploader.Buffer());
+    }
+    engine.render(renderedKeys, renderedTiles, MontageEngine.columnsFor(renderedTiles.size()), variants,
+        new ArrayList<>(encoded));
+    collageUploader.upload(storage, thumbnails, variants, previous, encoded);
+    lastRenderedKeys = renderedKeys;
  }
+
   public static void main(String[] args) {
     SpringApplication.run(CollageService.class, args);
   }
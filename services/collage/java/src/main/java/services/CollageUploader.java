@@ -0,0 +1,150 @@
+package services;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.PreDestroy;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Uploads the encoded variants of a collage render. A variant whose MD5 matches the object already
+ * in the bucket is not uploaded at all. The others are uploaded in parallel, each on the condition
+ * that the object is still the generation that was looked up (or still does not exist), so a
+ * concurrent render's newer collage is never overwritten with an older one.
+ *
+ * Hashing and upload both read the render's own buffer, so a collage is held in memory once.
+ */
+@Component
+public class CollageUploader {
+
+    enum Outcome { UPLOADED, UNCHANGED, CHANGED_CONCURRENTLY }
+
+    /** The encoder's output, read in place rather than copied out with toByteArray(). */
+    static class Buffer extends ByteArrayOutputStream {
+
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        String md5() throws Exception {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(buf, 0, count);
+            return Base64.getEncoder().encodeToString(digest.digest());
+        }
+    }
+
+    // no-cache lets browsers and caches revalidate against the object ETag instead of refetching
+    @Value("${collage.cache-control:public, no-cache}")
+    String cacheControl;
+
+    private ExecutorService executor;
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "collage-upload");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Uploads encoded.get(i) as variants.get(i), given the object found for it before the render
+     * (null if there was none). Returns what happened to each variant, in the same order.
+     */
+    public List<Outcome> upload(Storage storage, String bucket, List<CollageVariant> variants, List<Blob> previous,
+            List<Buffer> encoded) throws Exception {
+        List<Future<?>> uploads = new ArrayList<>(variants.size());
+        for (int i = 0; i < variants.size(); i++) {
+            CollageVariant variant = variants.get(i);
+            Blob existing = previous.get(i);
+            Buffer bytes = encoded.get(i);
+            if (existing != null && bytes.md5().equals(existing.getMd5())) {
+                System.out.println(variant.objectName() + " unchanged, skipping upload");
+                uploads.add(null);
+                continue;
+            }
+            uploads.add(executor().submit(() -> {
+                write(storage, bucket, variant, existing, bytes);
+                return null;
+            }));
+        }
+
+        List<Outcome> outcomes = new ArrayList<>(uploads.size());
+        for (int i = 0; i < uploads.size(); i++) {
+            if (uploads.get(i) == null) {
+                outcomes.add(Outcome.UNCHANGED);
+                continue;
+            }
+            try {
+                uploads.get(i).get();
+                System.out.println("Uploaded " + variants.get(i).objectName());
+                outcomes.add(Outcome.UPLOADED);
+            } catch (ExecutionException e) {
+                if (preconditionFailed(e.getCause())) {
+                    // another render replaced the object since we looked it up, keep the newer one
+                    System.out.println(variants.get(i).objectName() + " changed concurrently, not overwriting");
+                    outcomes.add(Outcome.CHANGED_CONCURRENTLY);
+                    continue;
+                }
+                throw e;
+            }
+        }
+        return outcomes;
+    }
+
+    // the upload only succeeds if the object is still the generation we looked up
+    private void write(Storage storage, String bucket, CollageVariant variant, Blob previous, Buffer bytes)
+            throws Exception {
+        BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucket, variant.objectName(),
+                previous == null ? null : previous.getGeneration()))
+            .setContentType(variant.contentType())
+            .setCacheControl(cacheControl)
+            .build();
+        Storage.BlobWriteOption condition = previous == null
+            ? Storage.BlobWriteOption.doesNotExist()
+            : Storage.BlobWriteOption.generationMatch();
+        try (WriteChannel channel = storage.writer(blobInfo, condition)) {
+            ByteBuffer contents = bytes.contents();
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+        }
+    }
+
+    // the writer may report the failed precondition wrapped, e.g. in an IOException from close()
+    static boolean preconditionFailed(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof StorageException && ((StorageException) cause).getCode() == 412) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One encoded output of a collage render: a name, a maximum width and an image format.
+ *
+ * Variants are configured as a comma separated list of name:maxWidth:format, for example
+ * "full:0:png,mobile:800:png,preview:240:jpg". A maxWidth of 0 keeps the montage size. The
+ * variant named "full" is stored as collage.png so existing links keep working; the others are
+ * stored as collage-name.format.
+ */
+public final class CollageVariant {
+
+    final String name;
+    final int maxWidth;
+    final String format;
+
+    CollageVariant(String name, int maxWidth, String format) {
+        this.name = name;
+        this.maxWidth = maxWidth;
+        this.format = format;
+    }
+
+    static List<CollageVariant> parse(String spec) {
+        List<CollageVariant> variants = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Expected name:maxWidth:format, got " + entry);
+            }
+            variants.add(new CollageVariant(parts[0], Integer.parseInt(parts[1]), parts[2].toLowerCase()));
+        }
+        return variants;
+    }
+
+    String objectName() {
+        return "full".equals(name) ? "collage." + format : "collage-" + name + "." + format;
+    }
+
+    String contentType() {
+        switch (format) {
+            case "jpg":
+            case "jpeg":
+                return "image/jpeg";
+            default:
+                return "image/" + format;
+        }
+    }
+
+    /** Width and height for the given montage size, scaled down to maxWidth if needed. */
+    int[] scaledSize(int width, int height) {
+        if (maxWidth <= 0 || width <= maxWidth) {
+            return new int[] {width, height};
+        }
+        return new int[] {maxWidth, Math.max(1, (int) Math.round((double) height * maxWidth / width))};
+    }
+}
@@ -0,0 +1,47 @@
+package services;
+
+import java.awt.Dimension;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.springframework.stereotype.Component;
+
+import magick.ImageInfo;
+import magick.MagickImage;
+import magick.MontageInfo;
+
+/**
+ * ImageMagick montage through JMagick. Variants are scaled from the montage and encoded to blobs
+ * in memory.
+ */
+@Component("jmagick")
+public class JMagickMontageEngine implements MontageEngine<MagickImage> {
+
+    @Override
+    public MagickImage decode(String name, byte[] bytes) throws Exception {
+        return new MagickImage(new ImageInfo(), bytes);
+    }
+
+    @Override
+    public void render(List<String> keys, List<MagickImage> tiles, int columns, List<CollageVariant> variants,
+            List<OutputStream> outs) throws Exception {
+        int rows = (tiles.size() + columns - 1) / columns;
+
+        MagickImage collage = new MagickImage(tiles.toArray(new MagickImage[0]));
+        ImageInfo imageInfo = new ImageInfo();
+        imageInfo.setTile(columns + "x" + rows);
+        MontageInfo montageInfo = new MontageInfo(imageInfo);
+        collage = collage.montageImages(montageInfo);
+
+        Dimension dimension = collage.getDimension();
+        for (int i = 0; i < variants.size(); i++) {
+            CollageVariant variant = variants.get(i);
+            int[] size = variant.scaledSize(dimension.width, dimension.height);
+            MagickImage image = size[0] == dimension.width ? collage : collage.scaleImage(size[0], size[1]);
+            ImageInfo outputInfo = new ImageInfo();
+            outputInfo.setMagick(variant.format);
+            image.setMagick(variant.format);
+            outs.get(i).write(image.imageToBlob(outputInfo));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package services;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Objects;
+
+import javax.imageio.ImageIO;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pure Java montage: tiles are scaled into cells of one preallocated RGB raster, and each variant is
+ * scaled from that raster and encoded straight into its output stream. Nothing touches the
+ * filesystem.
+ *
+ * Tiles are pre-scaled to the cell size when decoded, and the raster is kept between renders along
+ * with the key drawn in each cell, so a render only redraws the cells whose tile changed.
+ */
+@Component("java2d")
+public class Java2DMontageEngine implements MontageEngine<BufferedImage> {
+
+    // edge of the square cell each thumbnail is fitted into
+    @Value("${collage.tile-size:400}")
+    int tileSize;
+
+    // reused between renders of the same grid size
+    private BufferedImage canvas;
+    private String[] drawnKeys;
+
+    // decodes and fits the picture in a cell, keeping the aspect ratio and centring it
+    @Override
+    public BufferedImage decode(String name, byte[] bytes) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (image == null) {
+            throw new IOException("Unsupported image format: " + name);
+        }
+
+        double scale = Math.min((double) tileSize / image.getWidth(), (double) tileSize / image.getHeight());
+        int width = (int) Math.round(image.getWidth() * scale);
+        int height = (int) Math.round(image.getHeight() * scale);
+
+        BufferedImage tile = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = tile.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, tileSize, tileSize);
+            graphics.drawImage(image, (tileSize - width) / 2, (tileSize - height) / 2, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return tile;
+    }
+
+    @Override
+    public synchronized void render(List<String> keys, List<BufferedImage> tiles, int columns,
+            List<CollageVariant> variants, List<OutputStream> outs) throws IOException {
+        int rows = Math.max(1, (tiles.size() + columns - 1) / columns);
+        int width = columns * tileSize;
+        int height = rows * tileSize;
+        if (canvas == null || canvas.getWidth() != width || canvas.getHeight() != height) {
+            canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            drawnKeys = new String[columns * rows];
+        }
+
+        Graphics2D graphics = canvas.createGraphics();
+        int redrawn = 0;
+        try {
+            for (int cell = 0; cell < drawnKeys.length; cell++) {
+                String key = cell < keys.size() ? keys.get(cell) : "";
+                if (drawnKeys[cell] != null && Objects.equals(drawnKeys[cell], key)) {
+                    continue;
+                }
+                int x = (cell % columns) * tileSize;
+                int y = (cell / columns) * tileSize;
+                if (cell < tiles.size()) {
+                    graphics.drawImage(tiles.get(cell), x, y, null);
+                } else {
+                    graphics.setColor(Color.WHITE);
+                    graphics.fillRect(x, y, tileSize, tileSize);
+                }
+                drawnKeys[cell] = key;
+                redrawn++;
+            }
+        } finally {
+            graphics.dispose();
+        }
+        System.out.println(String.format("Redrew %d of %d collage cells", redrawn, drawnKeys.length));
+
+        for (int i = 0; i < variants.size(); i++) {
+            CollageVariant variant = variants.get(i);
+            BufferedImage image = scale(canvas, variant.scaledSize(width, height));
+            if (!ImageIO.write(image, variant.format, outs.get(i))) {
+                throw new IOException("No image writer for format " + variant.format);
+            }
+        }
+    }
+
+    // halves the size step by step before the final resize, single bilinear steps alias badly
+    private static BufferedImage scale(BufferedImage source, int[] size) {
+        BufferedImage image = source;
+        while (image.getWidth() / 2 >= size[0] && image.getHeight() / 2 >= size[1]) {
+            image = resize(image, image.getWidth() / 2, image.getHeight() / 2);
+        }
+        if (image.getWidth() != size[0] || image.getHeight() != size[1]) {
+            image = resize(image, size[0], size[1]);
+        }
+        return image;
+    }
+
+    private static BufferedImage resize(BufferedImage source, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+}
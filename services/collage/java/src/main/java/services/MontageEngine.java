@@ -0,0 +1,27 @@
+package services;
+
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Turns decoded thumbnails into a single collage image.
+ *
+ * @param <T> the engine's decoded tile type; decoded tiles are cached and reused across renders
+ */
+public interface MontageEngine<T> {
+
+    T decode(String name, byte[] bytes) throws Exception;
+
+    /**
+     * Lays the tiles out row by row in the given number of columns, then encodes every variant
+     * from that single montage into the output stream at the same position.
+     * Each key identifies the content of the tile at the same position, so an engine can skip
+     * redrawing cells that still hold the same tile as in the previous render.
+     */
+    void render(List<String> keys, List<T> tiles, int columns, List<CollageVariant> variants,
+            List<OutputStream> outs) throws Exception;
+
+    static int columnsFor(int tileCount) {
+        return Math.max(1, (int) Math.ceil(Math.sqrt(tileCount)));
+    }
+}
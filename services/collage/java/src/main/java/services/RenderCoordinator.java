@@ -0,0 +1,128 @@
+package services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Coalesces collage triggers. Requests that arrive while a render is running wait for that render
+ * instead of starting their own, renders are at least collage.min-interval-ms apart on an
+ * instance, and with the lease enabled only one instance renders at a time.
+ *
+ * A request that comes too soon after a render schedules one trailing render for when the interval
+ * is over, so the last upload of a burst still reaches the collage; further requests until then
+ * share it.
+ */
+@Component
+public class RenderCoordinator {
+
+    @Value("${collage.min-interval-ms:10000}")
+    long minIntervalMillis;
+
+    @Autowired
+    CollageLease lease;
+
+    private CompletableFuture<Void> inFlight;
+    private long lastRenderNanos;
+    private boolean rendered;
+    private boolean trailingScheduled;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "collage-trailing-render");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public interface Render {
+        void run() throws Exception;
+    }
+
+    public void run(Render render) throws Exception {
+        CompletableFuture<Void> current;
+        boolean owner = false;
+        synchronized (this) {
+            if (inFlight != null) {
+                System.out.println("Collage render in progress, joining it");
+                current = inFlight;
+            } else if (rendered && System.nanoTime() - lastRenderNanos < minIntervalMillis * 1_000_000) {
+                if (!trailingScheduled) {
+                    long delayNanos = lastRenderNanos + minIntervalMillis * 1_000_000 - System.nanoTime();
+                    System.out.println(String.format("Collage rendered less than %d ms ago, rendering again in %d ms",
+                        minIntervalMillis, TimeUnit.NANOSECONDS.toMillis(delayNanos)));
+                    trailingScheduled = true;
+                    scheduler.schedule(() -> runTrailing(render), delayNanos, TimeUnit.NANOSECONDS);
+                } else {
+                    System.out.println("Collage render already scheduled, skipping");
+                }
+                return;
+            } else {
+                current = new CompletableFuture<>();
+                inFlight = current;
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                renderUnderLease(render);
+                synchronized (this) {
+                    // only successful renders count, so a retry after a failure is not debounced
+                    lastRenderNanos = System.nanoTime();
+                    rendered = true;
+                }
+                current.complete(null);
+            } catch (Exception e) {
+                current.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    inFlight = null;
+                }
+            }
+        }
+
+        try {
+            current.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void runTrailing(Render render) {
+        synchronized (this) {
+            trailingScheduled = false;
+        }
+        try {
+            run(render);
+        } catch (Exception e) {
+            System.out.println("Scheduled collage render failed: " + e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void renderUnderLease(Render render) throws Exception {
+        if (!lease.acquire()) {
+            System.out.println("Another instance holds the collage lease, skipping");
+            return;
+        }
+        try {
+            render.run();
+        } finally {
+            lease.release();
+        }
+    }
+}
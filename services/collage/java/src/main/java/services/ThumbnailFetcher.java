@@ -0,0 +1,185 @@
+package services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PreDestroy;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Downloads thumbnails in parallel straight into memory and hands each one to a decoder as soon
+ * as it arrives, so decoding overlaps with the downloads still running. Collage latency is then
+ * bounded by the slowest single download rather than the sum of all of them.
+ *
+ * A download still running at its timeout has its ReadChannel closed by a watchdog, since a read
+ * blocked on a stalled connection does not return, nor react to interruption, on its own.
+ */
+@Component
+public class ThumbnailFetcher {
+
+    @Value("${collage.fetch.parallelism:8}")
+    int parallelism;
+
+    // maximum time for a single thumbnail download
+    @Value("${collage.fetch.timeout-ms:5000}")
+    long timeoutMillis;
+
+    @Value("${collage.fetch.chunk-size:262144}")
+    int chunkSize;
+
+    private ExecutorService executor;
+    private ScheduledExecutorService watchdog;
+
+    /** Turns downloaded bytes into a decoded tile; called on the requesting thread. */
+    public interface Decoder<T> {
+        T decode(String name, byte[] bytes) throws Exception;
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "thumbnail-fetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    private synchronized ScheduledExecutorService watchdog() {
+        if (watchdog == null) {
+            watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "thumbnail-fetch-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return watchdog;
+    }
+
+    /**
+     * Fetches and decodes the given blobs. The result is aligned with blobIds; thumbnails that
+     * failed or timed out are logged and come back as null.
+     */
+    public <T> List<T> fetch(Storage storage, List<BlobId> blobIds, Decoder<T> decoder)
+            throws InterruptedException {
+        CompletionService<Download> downloads = new ExecutorCompletionService<>(executor());
+        List<Future<Download>> pending = new ArrayList<>(blobIds.size());
+        for (int index = 0; index < blobIds.size(); index++) {
+            int position = index;
+            BlobId blobId = blobIds.get(index);
+            pending.add(downloads.submit(() -> new Download(position, blobId.getName(), read(storage, blobId))));
+        }
+
+        Object[] decoded = new Object[blobIds.size()];
+        // every download gets its own timeout once it starts, queueing included in the worst case
+        long rounds = (blobIds.size() + parallelism - 1) / Math.max(parallelism, 1);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis * Math.max(rounds, 1));
+        try {
+            for (int received = 0; received < blobIds.size(); received++) {
+                Future<Download> next = downloads.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    System.out.println(String.format("Gave up on %d thumbnail(s) at the fetch deadline",
+                        blobIds.size() - received));
+                    break;
+                }
+                try {
+                    Download download = next.get();
+                    decoded[download.index] = decoder.decode(download.name, download.bytes);
+                    System.out.println(download.name);
+                } catch (ExecutionException e) {
+                    System.out.println("Skipping thumbnail: " + e.getCause());
+                } catch (Exception e) {
+                    System.out.println("Could not decode thumbnail: " + e);
+                }
+            }
+        } finally {
+            for (Future<Download> download : pending) {
+                download.cancel(true);
+            }
+        }
+
+        List<T> tiles = new ArrayList<>(blobIds.size());
+        for (Object tile : decoded) {
+            @SuppressWarnings("unchecked")
+            T typed = (T) tile;
+            tiles.add(typed);
+        }
+        return tiles;
+    }
+
+    byte[] read(Storage storage, BlobId blobId) throws IOException, TimeoutException {
+        String name = blobId.getName();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        try (ReadChannel reader = storage.reader(blobId)) {
+            // closing the channel makes a blocked read() fail instead of waiting for the socket
+            ScheduledFuture<?> expiry = watchdog().schedule(() -> {
+                timedOut.set(true);
+                reader.close();
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                reader.setChunkSize(chunkSize);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(chunkSize);
+                ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+                while (reader.read(buffer) >= 0) {
+                    buffer.flip();
+                    out.write(buffer.array(), 0, buffer.limit());
+                    buffer.clear();
+                }
+                if (timedOut.get()) {
+                    throw new TimeoutException("Download of " + name + " exceeded " + timeoutMillis + " ms");
+                }
+                return out.toByteArray();
+            } catch (IOException | RuntimeException e) {
+                if (timedOut.get()) {
+                    throw new TimeoutException("Download of " + name + " exceeded " + timeoutMillis + " ms");
+                }
+                throw e;
+            } finally {
+                expiry.cancel(false);
+            }
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+        }
+    }
+
+    private static final class Download {
+        final int index;
+        final String name;
+        final byte[] bytes;
+
+        Download(int index, String name, byte[] bytes) {
+            this.index = index;
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+}
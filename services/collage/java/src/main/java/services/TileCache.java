@@ -0,0 +1,38 @@
+package services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * LRU of decoded, engine-ready tiles keyed by thumbnail name and blob generation, so a thumbnail
+ * is only downloaded and decoded again when its content changes.
+ */
+@Component
+public class TileCache {
+
+    @Value("${collage.tile-cache.max-entries:64}")
+    int maxEntries;
+
+    private final LinkedHashMap<String, Object> tiles = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    static String key(String name, Long generation) {
+        return name + "#" + generation;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T get(String key) {
+        return (T) tiles.get(key);
+    }
+
+    public synchronized void put(String key, Object tile) {
+        tiles.put(key, tile);
+    }
+}
@@ -0,0 +1,153 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the names of the N most recent pictures with a thumbnail in memory, updated by a snapshot
+ * listener on the pictures query, so a collage request needs no Firestore round-trip.
+ *
+ * When the listener fails it is torn down and registered again with a growing delay. Until the
+ * first snapshot of a registration arrives, names() queries Firestore directly.
+ */
+@Component
+public class TopPictures {
+
+    // pictures in the collage, raise it for larger grids
+    @Value("${collage.top-n:4}")
+    int topN;
+
+    @Value("${collage.listener.max-backoff-ms:60000}")
+    long maxBackoffMillis;
+
+    // on Cloud Run the listener gets no CPU between requests, so an older snapshot is not trusted
+    @Value("${collage.listener.max-staleness-ms:30000}")
+    long maxStalenessMillis;
+
+    @Autowired
+    Firestore firestore;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "top-pictures-listener");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ListenerRegistration registration;
+    private long backoffMillis;
+    private boolean stopped;
+
+    // null while there is no in-sync snapshot
+    private volatile Snapshot current;
+
+    private static final class Snapshot {
+        final List<String> names;
+        final long readTimeMillis;
+
+        Snapshot(List<String> names, long readTimeMillis) {
+            this.names = names;
+            this.readTimeMillis = readTimeMillis;
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler.execute(this::listen);
+    }
+
+    /**
+     * Names of the most recent pictures, newest first. The listener's snapshot is used while it was
+     * read less than max-staleness-ms ago, otherwise Firestore is queried directly.
+     */
+    public List<String> names() throws Exception {
+        Snapshot snapshot = current;
+        if (snapshot != null && System.currentTimeMillis() - snapshot.readTimeMillis <= maxStalenessMillis) {
+            return snapshot.names;
+        }
+        System.out.println(snapshot == null
+            ? "Top pictures listener not in sync, querying Firestore"
+            : "Top pictures snapshot is stale, querying Firestore");
+        QuerySnapshot fresh = query().get().get();
+        update(fresh);
+        return namesOf(fresh);
+    }
+
+    private Query query() {
+        return firestore.collectionGroup("pictures")
+            .whereEqualTo("thumbnail", Boolean.TRUE)
+            .orderBy("created", Query.Direction.DESCENDING)
+            .limit(topN);
+    }
+
+    // runs on the scheduler thread
+    private synchronized void listen() {
+        if (stopped) {
+            return;
+        }
+        registration = query().addSnapshotListener(scheduler, this::onSnapshot);
+    }
+
+    private synchronized void onSnapshot(QuerySnapshot snapshot, FirestoreException error) {
+        if (error != null) {
+            current = null;
+            if (registration != null) {
+                registration.remove();
+                registration = null;
+            }
+            backoffMillis = Math.min(Math.max(backoffMillis * 2, 1000), maxBackoffMillis);
+            System.out.println(String.format("Top pictures listener failed, resyncing in %d ms: %s",
+                backoffMillis, error));
+            if (!stopped) {
+                scheduler.schedule(this::listen, backoffMillis, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        backoffMillis = 0;
+        update(snapshot);
+    }
+
+    // keeps whichever of the listener's and the direct query's results was read last
+    private synchronized void update(QuerySnapshot snapshot) {
+        long readTimeMillis = snapshot.getReadTime().toDate().getTime();
+        Snapshot previous = current;
+        if (previous == null || readTimeMillis >= previous.readTimeMillis) {
+            current = new Snapshot(namesOf(snapshot), readTimeMillis);
+        }
+    }
+
+    private static List<String> namesOf(QuerySnapshot snapshot) {
+        List<String> names = new ArrayList<>(snapshot.size());
+        for (QueryDocumentSnapshot document : snapshot.getDocuments()) {
+            names.add(document.getId());
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        stopped = true;
+        if (registration != null) {
+            registration.remove();
+            registration = null;
+        }
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,80 @@
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.FirestoreEmulatorContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+@Testcontainers
+public class CollageLeaseContainerTests {
+
+    @Container
+    private static final FirestoreEmulatorContainer firestoreEmulator =
+        new FirestoreEmulatorContainer(
+            DockerImageName.parse(
+                "gcr.io/google.com/cloudsdktool/google-cloud-cli:emulators"));
+
+    private Firestore firestore;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        firestore = FirestoreOptions.getDefaultInstance().toBuilder()
+            .setHost(firestoreEmulator.getEmulatorEndpoint())
+            .setCredentials(NoCredentials.getInstance())
+            .setProjectId("fake-test-project-id")
+            .build()
+            .getService();
+        firestore.collection("locks").document("collage").delete().get();
+    }
+
+    @AfterEach
+    public void close() throws Exception {
+        firestore.close();
+    }
+
+    @Test
+    void secondInstanceWaitsForTheHolder() throws Exception {
+        CollageLease first = lease(60000);
+        CollageLease second = lease(60000);
+
+        assertTrue(first.acquire());
+        assertFalse(second.acquire());
+        // the holder can renew its own lease
+        assertTrue(first.acquire());
+
+        first.release();
+        assertTrue(second.acquire());
+    }
+
+    @Test
+    void expiredLeaseIsTakenOver() throws Exception {
+        CollageLease crashed = lease(200);
+        CollageLease other = lease(60000);
+
+        assertTrue(crashed.acquire());
+        Thread.sleep(400);
+        assertTrue(other.acquire());
+
+        // the late release of the expired holder leaves the new lease in place
+        crashed.release();
+        assertFalse(crashed.acquire());
+    }
+
+    private CollageLease lease(long durationMillis) {
+        CollageLease lease = new CollageLease();
+        lease.enabled = true;
+        lease.durationMillis = durationMillis;
+        lease.firestore = firestore;
+        return lease;
+    }
+}
@@ -0,0 +1,134 @@
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+
+import services.CollageUploader.Buffer;
+import services.CollageUploader.Outcome;
+
+@SpringJUnitConfig(CollageUploader.class)
+public class CollageUploaderTests {
+
+    private static final List<CollageVariant> VARIANTS = CollageVariant.parse("full:0:png,preview:240:jpg");
+
+    private final Storage storage = mock(Storage.class);
+
+    @Autowired
+    private CollageUploader collageUploader;
+
+    @Test
+    void unchangedVariantIsNotUploaded() throws Exception {
+        Buffer full = buffer(1, 2, 3);
+        Buffer preview = buffer(4, 5);
+        Blob storedFull = stored(7L, full.md5());
+        Blob storedPreview = stored(8L, buffer(9).md5());
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        when(storage.writer(any(BlobInfo.class), any(Storage.BlobWriteOption.class))).thenReturn(channel(written));
+
+        List<Outcome> outcomes = collageUploader.upload(storage, "thumbnails", VARIANTS,
+            Arrays.asList(storedFull, storedPreview), Arrays.asList(full, preview));
+
+        assertEquals(Arrays.asList(Outcome.UNCHANGED, Outcome.UPLOADED), outcomes);
+        ArgumentCaptor<BlobInfo> uploaded = ArgumentCaptor.forClass(BlobInfo.class);
+        verify(storage).writer(uploaded.capture(), eq(Storage.BlobWriteOption.generationMatch()));
+        verifyNoMoreInteractions(storage);
+        assertArrayEquals(new byte[] {4, 5}, written.toByteArray());
+        assertEquals("collage-preview.jpg", uploaded.getValue().getName());
+        assertEquals(8L, uploaded.getValue().getGeneration());
+        assertEquals("image/jpeg", uploaded.getValue().getContentType());
+        assertEquals("public, no-cache", uploaded.getValue().getCacheControl());
+    }
+
+    @Test
+    void firstUploadRequiresTheObjectNotToExist() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        when(storage.writer(any(BlobInfo.class), any(Storage.BlobWriteOption.class))).thenReturn(channel(written));
+
+        List<Outcome> outcomes = collageUploader.upload(storage, "thumbnails", VARIANTS.subList(0, 1),
+            Arrays.asList((Blob) null), Arrays.asList(buffer(1, 2, 3)));
+
+        assertEquals(Arrays.asList(Outcome.UPLOADED), outcomes);
+        verify(storage).writer(any(BlobInfo.class), eq(Storage.BlobWriteOption.doesNotExist()));
+        assertArrayEquals(new byte[] {1, 2, 3}, written.toByteArray());
+    }
+
+    @Test
+    void preconditionFailureKeepsTheConcurrentCollage() throws Exception {
+        // the resumable upload reports the failed precondition when it is finalised
+        WriteChannel channel = channel(new ByteArrayOutputStream());
+        doThrow(new IOException(new StorageException(412, "Precondition Failed"))).when(channel).close();
+        when(storage.writer(any(BlobInfo.class), any(Storage.BlobWriteOption.class))).thenReturn(channel);
+
+        List<Outcome> outcomes = collageUploader.upload(storage, "thumbnails", VARIANTS,
+            Arrays.asList(stored(7L, "stale"), null), Arrays.asList(buffer(1), buffer(2)));
+
+        assertEquals(Arrays.asList(Outcome.CHANGED_CONCURRENTLY, Outcome.CHANGED_CONCURRENTLY), outcomes);
+    }
+
+    @Test
+    void otherUploadFailuresAreThrown() {
+        when(storage.writer(any(BlobInfo.class), any(Storage.BlobWriteOption.class)))
+            .thenThrow(new StorageException(503, "Service Unavailable"));
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> collageUploader.upload(storage,
+            "thumbnails", VARIANTS.subList(0, 1), Arrays.asList((Blob) null), Arrays.asList(buffer(1))));
+        assertInstanceOf(StorageException.class, failure.getCause());
+    }
+
+    private static Buffer buffer(int... bytes) {
+        Buffer buffer = new Buffer();
+        for (int b : bytes) {
+            buffer.write(b);
+        }
+        return buffer;
+    }
+
+    // a channel that copies whatever is written to it into out
+    private static WriteChannel channel(ByteArrayOutputStream out) throws IOException {
+        WriteChannel channel = mock(WriteChannel.class);
+        doAnswer(invocation -> {
+            ByteBuffer source = invocation.getArgument(0);
+            int length = source.remaining();
+            byte[] bytes = new byte[length];
+            source.get(bytes);
+            out.write(bytes);
+            return length;
+        }).when(channel).write(any(ByteBuffer.class));
+        return channel;
+    }
+
+    private static Blob stored(long generation, String md5) {
+        Blob blob = mock(Blob.class);
+        when(blob.getGeneration()).thenReturn(generation);
+        when(blob.getMd5()).thenReturn(md5);
+        return blob;
+    }
+}
@@ -0,0 +1,41 @@
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class CollageVariantTests {
+
+    @Test
+    void parsesTheDefaultSpec() {
+        List<CollageVariant> variants = CollageVariant.parse("full:0:png, mobile:800:PNG,preview:240:jpg");
+
+        assertEquals(3, variants.size());
+        assertEquals("collage.png", variants.get(0).objectName());
+        assertEquals("image/png", variants.get(0).contentType());
+        assertEquals("collage-mobile.png", variants.get(1).objectName());
+        assertEquals(800, variants.get(1).maxWidth);
+        assertEquals("collage-preview.jpg", variants.get(2).objectName());
+        assertEquals("image/jpeg", variants.get(2).contentType());
+    }
+
+    @Test
+    void rejectsMalformedEntries() {
+        assertThrows(IllegalArgumentException.class, () -> CollageVariant.parse("full:png"));
+        assertThrows(NumberFormatException.class, () -> CollageVariant.parse("mobile:wide:png"));
+    }
+
+    @Test
+    void scalesDownOnlyPastMaxWidth() {
+        CollageVariant full = CollageVariant.parse("full:0:png").get(0);
+        CollageVariant mobile = CollageVariant.parse("mobile:800:png").get(0);
+
+        assertArrayEquals(new int[] {1600, 1200}, full.scaledSize(1600, 1200));
+        assertArrayEquals(new int[] {800, 600}, mobile.scaledSize(1600, 1200));
+        assertArrayEquals(new int[] {400, 400}, mobile.scaledSize(400, 400));
+    }
+}
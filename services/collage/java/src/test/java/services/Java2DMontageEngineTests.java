@@ -0,0 +1,99 @@
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+public class Java2DMontageEngineTests {
+
+    private static final int TILE_SIZE = 16;
+    private static final List<CollageVariant> VARIANTS = CollageVariant.parse("full:0:png,small:16:png");
+
+    @Test
+    void incrementalRedrawMatchesFullRedraw() throws Exception {
+        Java2DMontageEngine incremental = engine();
+        render(incremental, "a", "b", "c", "d");
+        // one cell changes, one moves
+        List<BufferedImage> redrawn = render(incremental, "a", "x", "d", "c");
+
+        List<BufferedImage> full = render(engine(), "a", "x", "d", "c");
+        assertSameImages(full, redrawn);
+    }
+
+    @Test
+    void cellsLeftEmptyAreClearedOnRedraw() throws Exception {
+        Java2DMontageEngine incremental = engine();
+        render(incremental, "a", "b", "c", "d");
+        // three tiles keep the 2x2 grid, the last cell must go back to white
+        List<BufferedImage> redrawn = render(incremental, "a", "b", "c");
+
+        List<BufferedImage> full = render(engine(), "a", "b", "c");
+        assertSameImages(full, redrawn);
+        assertEquals(Color.WHITE.getRGB(), redrawn.get(0).getRGB(TILE_SIZE + 1, TILE_SIZE + 1));
+    }
+
+    private static Java2DMontageEngine engine() {
+        Java2DMontageEngine engine = new Java2DMontageEngine();
+        engine.tileSize = TILE_SIZE;
+        return engine;
+    }
+
+    // renders the named tiles and decodes every variant back
+    private static List<BufferedImage> render(Java2DMontageEngine engine, String... keys) throws Exception {
+        List<BufferedImage> tiles = new ArrayList<>(keys.length);
+        for (String key : keys) {
+            tiles.add(tile(key));
+        }
+        List<OutputStream> outs = new ArrayList<>();
+        for (int i = 0; i < VARIANTS.size(); i++) {
+            outs.add(new ByteArrayOutputStream());
+        }
+        engine.render(Arrays.asList(keys), tiles, MontageEngine.columnsFor(keys.length), VARIANTS, outs);
+
+        List<BufferedImage> images = new ArrayList<>(outs.size());
+        for (OutputStream out : outs) {
+            images.add(ImageIO.read(new ByteArrayInputStream(((ByteArrayOutputStream) out).toByteArray())));
+        }
+        return images;
+    }
+
+    // a solid tile whose colour is derived from its key
+    private static BufferedImage tile(String key) {
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = tile.createGraphics();
+        try {
+            graphics.setColor(new Color(key.hashCode() * 0x9E3779B1 & 0xFFFFFF));
+            graphics.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+        } finally {
+            graphics.dispose();
+        }
+        return tile;
+    }
+
+    private static void assertSameImages(List<BufferedImage> expected, List<BufferedImage> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            BufferedImage want = expected.get(i);
+            BufferedImage got = actual.get(i);
+            assertEquals(want.getWidth(), got.getWidth());
+            assertEquals(want.getHeight(), got.getHeight());
+            assertArrayEquals(
+                want.getRGB(0, 0, want.getWidth(), want.getHeight(), null, 0, want.getWidth()),
+                got.getRGB(0, 0, got.getWidth(), got.getHeight(), null, 0, got.getWidth()),
+                "variant " + VARIANTS.get(i).name);
+        }
+    }
+}
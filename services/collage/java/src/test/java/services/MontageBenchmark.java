@@ -0,0 +1,95 @@
+package services;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Renders an NxN collage of synthetic 400x400 thumbnails with one engine and reports render time
+ * and the peak RSS of the JVM. Run one engine and grid per JVM so the RSS figure is not shared;
+ * benchmark.sh drives the full matrix.
+ *
+ * Usage: MontageBenchmark <java2d|jmagick> <grid> [iterations]
+ */
+public class MontageBenchmark {
+
+    private static final List<CollageVariant> FULL = CollageVariant.parse("full:0:png");
+
+    public static void main(String[] args) throws Exception {
+        String engineName = args[0];
+        int grid = Integer.parseInt(args[1]);
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        MontageEngine<?> engine;
+        if ("jmagick".equals(engineName)) {
+            engine = new JMagickMontageEngine();
+        } else {
+            Java2DMontageEngine java2d = new Java2DMontageEngine();
+            java2d.tileSize = 400;
+            engine = java2d;
+        }
+
+        List<byte[]> thumbnails = new ArrayList<>();
+        for (int i = 0; i < grid * grid; i++) {
+            thumbnails.add(thumbnail(i));
+        }
+
+        long[] samples = run(engine, thumbnails, grid, iterations);
+        Arrays.sort(samples);
+        System.out.println(String.format("%-8s %2dx%-2d render p50=%7.1f ms max=%7.1f ms peak RSS=%s",
+            engineName, grid, grid, samples[samples.length / 2] / 1e6, samples[samples.length - 1] / 1e6, peakRss()));
+    }
+
+    private static <T> long[] run(MontageEngine<T> engine, List<byte[]> thumbnails, int grid, int iterations)
+            throws Exception {
+        long[] samples = new long[iterations];
+        for (int i = -3; i < iterations; i++) {
+            long start = System.nanoTime();
+            List<String> keys = new ArrayList<>(thumbnails.size());
+            List<T> tiles = new ArrayList<>(thumbnails.size());
+            for (int j = 0; j < thumbnails.size(); j++) {
+                // fresh keys every iteration, so incremental engines still redraw every cell
+                keys.add(i + ":" + j);
+                tiles.add(engine.decode("thumbnail", thumbnails.get(j)));
+            }
+            engine.render(keys, tiles, grid, FULL, List.of(OutputStream.nullOutputStream()));
+            if (i >= 0) {
+                samples[i] = System.nanoTime() - start;
+            }
+        }
+        return samples;
+    }
+
+    private static byte[] thumbnail(int seed) throws IOException {
+        BufferedImage image = new BufferedImage(400, 400, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, new Color(seed * 37 % 256, 80, 160),
+            400, 400, new Color(20, seed * 53 % 256, 90)));
+        graphics.fillRect(0, 0, 400, 400);
+        graphics.dispose();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    private static String peakRss() throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+            if (line.startsWith("VmHWM:")) {
+                return line.substring("VmHWM:".length()).trim();
+            }
+        }
+        return "n/a";
+    }
+}
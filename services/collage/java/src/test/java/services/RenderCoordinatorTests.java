@@ -0,0 +1,131 @@
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+@SpringJUnitConfig(RenderCoordinator.class)
+@TestPropertySource(properties = "collage.min-interval-ms=60000")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class RenderCoordinatorTests {
+
+    @MockBean
+    private CollageLease lease;
+
+    @Autowired
+    private RenderCoordinator renderCoordinator;
+
+    @BeforeEach
+    void grantLease() throws Exception {
+        when(lease.acquire()).thenReturn(true);
+    }
+
+    @Test
+    void concurrentRequestsShareOneRender() throws Exception {
+        AtomicInteger renders = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> run(() -> {
+            renders.incrementAndGet();
+            started.countDown();
+            finish.await();
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Thread joiner = new Thread(() -> run(renders::incrementAndGet));
+        joiner.start();
+        // the second request parks on the in-flight render before it is released
+        awaitWaiting(joiner);
+        finish.countDown();
+
+        first.get(5, TimeUnit.SECONDS);
+        joiner.join(5000);
+        assertEquals(1, renders.get());
+        verify(lease).release();
+    }
+
+    @Test
+    void failedRenderIsNotDebounced() throws Exception {
+        IllegalStateException failure = new IllegalStateException("render failed");
+        AtomicInteger renders = new AtomicInteger();
+
+        assertSame(failure, assertThrows(IllegalStateException.class, () -> renderCoordinator.run(() -> {
+            renders.incrementAndGet();
+            throw failure;
+        })));
+        // a failed render does not start the minimum interval, so the retry runs
+        renderCoordinator.run(renders::incrementAndGet);
+        assertEquals(2, renders.get());
+
+        // a successful one does
+        renderCoordinator.run(renders::incrementAndGet);
+        assertEquals(2, renders.get());
+    }
+
+    @Test
+    void requestsWithinTheIntervalGetOneTrailingRender() throws Exception {
+        renderCoordinator.minIntervalMillis = 200;
+        AtomicInteger renders = new AtomicInteger();
+        CountDownLatch trailing = new CountDownLatch(1);
+        RenderCoordinator.Render render = () -> {
+            if (renders.incrementAndGet() == 2) {
+                trailing.countDown();
+            }
+        };
+
+        renderCoordinator.run(render);
+        // a burst right after the render is coalesced into one render once the interval is over
+        renderCoordinator.run(render);
+        renderCoordinator.run(render);
+        assertEquals(1, renders.get());
+
+        assertTrue(trailing.await(5, TimeUnit.SECONDS));
+        Thread.sleep(400);
+        assertEquals(2, renders.get());
+    }
+
+    @Test
+    void skipsWhenAnotherInstanceHoldsTheLease() throws Exception {
+        when(lease.acquire()).thenReturn(false);
+        AtomicInteger renders = new AtomicInteger();
+
+        renderCoordinator.run(renders::incrementAndGet);
+
+        assertEquals(0, renders.get());
+        verify(lease, never()).release();
+    }
+
+    private void run(RenderCoordinator.Render render) {
+        try {
+            renderCoordinator.run(render);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (thread.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+    }
+}
@@ -0,0 +1,76 @@
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+
+@SpringJUnitConfig(ThumbnailFetcher.class)
+@TestPropertySource(properties = "collage.fetch.timeout-ms=200")
+public class ThumbnailFetcherTests {
+
+    private static final BlobId CAT = BlobId.of("thumbnails", "cat.png");
+    private static final BlobId STALLED = BlobId.of("thumbnails", "stalled.png");
+
+    @Autowired
+    private ThumbnailFetcher thumbnailFetcher;
+
+    @Test
+    void stalledDownloadIsAbortedAtItsTimeout() throws Exception {
+        Storage storage = mock(Storage.class);
+        ReadChannel cat = channel(new byte[] {1, 2, 3});
+        when(storage.reader(CAT)).thenReturn(cat);
+        // a read that only returns once the channel is closed, like one on a stalled connection
+        CountDownLatch closed = new CountDownLatch(1);
+        ReadChannel stalled = mock(ReadChannel.class);
+        when(stalled.read(any(ByteBuffer.class))).thenAnswer(invocation -> {
+            closed.await(10, TimeUnit.SECONDS);
+            throw new IOException("channel closed");
+        });
+        doAnswer(invocation -> {
+            closed.countDown();
+            return null;
+        }).when(stalled).close();
+        when(storage.reader(STALLED)).thenReturn(stalled);
+
+        long start = System.nanoTime();
+        List<byte[]> tiles = thumbnailFetcher.fetch(storage, Arrays.asList(CAT, STALLED), (name, bytes) -> bytes);
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(2, tiles.size());
+        assertArrayEquals(new byte[] {1, 2, 3}, tiles.get(0));
+        assertNull(tiles.get(1));
+    }
+
+    // a channel that returns bytes in one read, then the end of the stream
+    private static ReadChannel channel(byte[] bytes) throws IOException {
+        ReadChannel channel = mock(ReadChannel.class);
+        when(channel.read(any(ByteBuffer.class)))
+            .thenAnswer(invocation -> {
+                ((ByteBuffer) invocation.getArgument(0)).put(bytes);
+                return bytes.length;
+            })
+            .thenReturn(-1);
+        return channel;
+    }
+}
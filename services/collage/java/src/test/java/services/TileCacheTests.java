@@ -0,0 +1,40 @@
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+@SpringJUnitConfig(TileCache.class)
+@TestPropertySource(properties = "collage.tile-cache.max-entries=2")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class TileCacheTests {
+
+    @Autowired
+    private TileCache tileCache;
+
+    @Test
+    void evictsTheLeastRecentlyUsedTile() {
+        tileCache.put("a#1", "tile a");
+        tileCache.put("b#1", "tile b");
+        // reading a makes b the eldest entry
+        assertEquals("tile a", tileCache.get("a#1"));
+        tileCache.put("c#1", "tile c");
+
+        assertNull(tileCache.get("b#1"));
+        assertEquals("tile a", tileCache.get("a#1"));
+        assertEquals("tile c", tileCache.get("c#1"));
+    }
+
+    @Test
+    void newGenerationIsADifferentEntry() {
+        tileCache.put(TileCache.key("cat.png", 1L), "old");
+
+        assertNull(tileCache.get(TileCache.key("cat.png", 2L)));
+        assertEquals("old", tileCache.get(TileCache.key("cat.png", 1L)));
+    }
+}
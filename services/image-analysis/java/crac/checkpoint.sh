@@ -0,0 +1,34 @@
+#!/bin/bash
+# Builds image-analysis-crac: runs the service once on a CRaC JDK so it warms up and checkpoints,
+# then commits the container with an entrypoint that restores from that checkpoint.
+# Credentials for the warm-up calls are passed through DOCKER_ARGS, e.g.
+#   DOCKER_ARGS="-v $HOME/.config/gcloud:/root/.config/gcloud -e GOOGLE_CLOUD_PROJECT=my-project"
+set -e
+cd "$(dirname "$0")/.."
+
+./mvnw -q package -DskipTests
+docker build -f crac/Dockerfile -t image-analysis-crac-checkpoint .
+
+docker rm -f image-analysis-crac-checkpoint 2>/dev/null || true
+# checkpointing needs CAP_CHECKPOINT_RESTORE and friends. The JVM is killed once its state is
+# saved, which docker reports as 137; the service exits with 1 if the checkpoint failed.
+status=0
+docker run --name image-analysis-crac-checkpoint --privileged $DOCKER_ARGS image-analysis-crac-checkpoint || status=$?
+if [ "$status" -ne 0 ] && [ "$status" -ne 137 ]; then
+  echo "Checkpoint run failed with exit code $status" >&2
+  docker rm image-analysis-crac-checkpoint >/dev/null
+  exit 1
+fi
+
+# CRIU writes its image files into the checkpoint directory
+if ! docker cp image-analysis-crac-checkpoint:/app/checkpoint - | tar -tf - | grep -q '\.img$'; then
+  echo "No checkpoint files in /app/checkpoint, not building image-analysis-crac" >&2
+  docker rm image-analysis-crac-checkpoint >/dev/null
+  exit 1
+fi
+
+docker commit \
+  --change 'ENTRYPOINT ["java", "-XX:CRaCRestoreFrom=/app/checkpoint"]' \
+  image-analysis-crac-checkpoint image-analysis-crac
+docker rm image-analysis-crac-checkpoint
+echo "Built image-analysis-crac"
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import analysis.DominantColors;
+
+/**
+ * Cost of computing the main colour locally, on a 12 MP camera-sized JPEG: the subsampled decode
+ * and histogram the service uses, the histogram on its own, and a full-resolution decode as the
+ * reference point subsampling avoids.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DominantColorBenchmark {
+
+  @Param({"64", "128", "256"})
+  int sampleSize;
+
+  private byte[] jpeg;
+  private int[] samplePixels;
+
+  @Setup
+  public void setUp() throws Exception {
+    // sky over a field with noise, so the encoder cannot make the file trivially small
+    Random random = new Random(42);
+    BufferedImage image = new BufferedImage(4000, 3000, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        int noise = random.nextInt(17) - 8;
+        int rgb = y < 1800
+            ? channel(90 + y / 40 + noise) << 16 | channel(150 + y / 40 + noise) << 8 | channel(220 + noise)
+            : channel(70 + noise) << 16 | channel(130 + x / 100 + noise) << 8 | channel(40 + noise);
+        image.setRGB(x, y, rgb);
+      }
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpg", out);
+    jpeg = out.toByteArray();
+
+    BufferedImage sample = new BufferedImage(sampleSize, sampleSize * 3 / 4, BufferedImage.TYPE_INT_RGB);
+    sample.getGraphics().drawImage(image, 0, 0, sample.getWidth(), sample.getHeight(), null);
+    samplePixels = sample.getRGB(0, 0, sample.getWidth(), sample.getHeight(), null, 0, sample.getWidth());
+  }
+
+  private static int channel(int value) {
+    return Math.max(0, Math.min(255, value));
+  }
+
+  @Benchmark
+  public String subsampledDecode() throws Exception {
+    return DominantColors.mainColor(jpeg, sampleSize);
+  }
+
+  @Benchmark
+  public String histogram() {
+    return DominantColors.mainColor(samplePixels);
+  }
+
+  // what decoding every pixel would cost, independent of sampleSize
+  @Benchmark
+  public BufferedImage fullDecode() throws Exception {
+    return ImageIO.read(new ByteArrayInputStream(jpeg));
+  }
+}
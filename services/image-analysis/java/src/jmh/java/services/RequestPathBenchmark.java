@@ -0,0 +1,173 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.ColorInfo;
+import com.google.cloud.vision.v1.DominantColorsAnnotation;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.cloud.vision.v1.ImageProperties;
+import com.google.cloud.vision.v1.Likelihood;
+import com.google.cloud.vision.v1.SafeSearchAnnotation;
+import com.google.type.Color;
+
+import analysis.ImageAnnotations;
+
+/**
+ * CPU and allocation cost of the request path without network calls: binding the event body,
+ * CloudEvent header validation, mapping a canned Vision response to an AnalysisResult, and building the Firestore
+ * picture document.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec
+ * The profile passes -prof gc, so each result comes with gc.alloc.rate.norm (bytes per op).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestPathBenchmark {
+
+  private static final String[] LABELS = {
+      "Sky", "Cloud", "Water", "Natural landscape", "Mountain",
+      "Lake", "Tree", "Highland", "Reflection", "Horizon"};
+
+  // Cloud Storage object payload as Eventarc delivers it
+  private static final String EVENT_BODY = "{"
+      + "\"kind\":\"storage#object\",\"id\":\"uploaded-pictures/IMG_0042.jpg/1696507200000000\","
+      + "\"selfLink\":\"https://www.googleapis.com/storage/v1/b/uploaded-pictures/o/IMG_0042.jpg\","
+      + "\"name\":\"IMG_0042.jpg\",\"bucket\":\"uploaded-pictures\",\"generation\":\"1696507200000000\","
+      + "\"metageneration\":\"1\",\"contentType\":\"image/jpeg\","
+      + "\"timeCreated\":\"2023-10-05T12:00:00.000Z\",\"updated\":\"2023-10-05T12:00:00.000Z\","
+      + "\"storageClass\":\"STANDARD\",\"timeStorageClassUpdated\":\"2023-10-05T12:00:00.000Z\","
+      + "\"size\":\"2481532\",\"md5Hash\":\"1B2M2Y8AsgTpgAmY7PhCfg==\",\"crc32c\":\"AAAAAA==\","
+      + "\"etag\":\"CIDg2MG9/4ADEAE=\"}";
+
+  private static final String CE_ID = "8a1c3f7e-2b4d-4a8e-9a51-6f0c1d2e3b4a";
+  private static final String CE_SOURCE = "//storage.googleapis.com/projects/_/buckets/uploaded-pictures";
+  private static final String CE_TYPE = "google.cloud.storage.object.v1.finalized";
+  private static final String CE_SPECVERSION = "1.0";
+  private static final String CE_SUBJECT = "objects/IMG_0042.jpg";
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private AnnotateImageResponse response;
+  private AnalysisResult result;
+
+  @Setup
+  public void setUp() {
+    AnnotateImageResponse.Builder builder = AnnotateImageResponse.newBuilder();
+    for (int i = 0; i < LABELS.length; i++) {
+      builder.addLabelAnnotations(EntityAnnotation.newBuilder()
+          .setDescription(LABELS[i])
+          .setScore(0.95f - i * 0.03f));
+    }
+    builder.setImagePropertiesAnnotation(ImageProperties.newBuilder()
+        .setDominantColors(DominantColorsAnnotation.newBuilder()
+            .addColors(ColorInfo.newBuilder()
+                .setColor(Color.newBuilder().setRed(112).setGreen(146).setBlue(190))
+                .setScore(0.4f)
+                .setPixelFraction(0.3f))
+            .addColors(ColorInfo.newBuilder()
+                .setColor(Color.newBuilder().setRed(240).setGreen(240).setBlue(236))
+                .setScore(0.2f)
+                .setPixelFraction(0.25f))));
+    builder.setSafeSearchAnnotation(SafeSearchAnnotation.newBuilder()
+        .setAdult(Likelihood.VERY_UNLIKELY)
+        .setMedical(Likelihood.UNLIKELY)
+        .setRacy(Likelihood.POSSIBLE)
+        .setSpoof(Likelihood.VERY_UNLIKELY)
+        .setViolence(Likelihood.VERY_UNLIKELY));
+    response = builder.build();
+    result = EventMapping.toResult(response, ImageAnnotations.mainColor(response));
+  }
+
+  // what the handler binds the body to
+  @Benchmark
+  public StorageObjectData bindTyped() throws Exception {
+    return objectMapper.readValue(EVENT_BODY, StorageObjectData.class);
+  }
+
+  // the previous Map<String, Object> binding, kept as a reference point
+  @Benchmark
+  public Map<String, Object> bindMap() throws Exception {
+    return objectMapper.readValue(EVENT_BODY, new TypeReference<Map<String, Object>>() { });
+  }
+
+  @Benchmark
+  public String validateHeaders() {
+    return EventMapping.validateHeaders(CE_ID, CE_SOURCE, CE_TYPE, CE_SPECVERSION, CE_SUBJECT);
+  }
+
+  @Benchmark
+  public List<String> labels() {
+    return ImageAnnotations.labels(response);
+  }
+
+  @Benchmark
+  public String mainColor() {
+    return ImageAnnotations.mainColor(response);
+  }
+
+  @Benchmark
+  public String rgbHex() {
+    return ImageAnnotations.rgbHex(112, 146, 190);
+  }
+
+  @Benchmark
+  public boolean isSafe() {
+    return ImageAnnotations.isSafe(response);
+  }
+
+  @Benchmark
+  public AnalysisResult toResult() {
+    return EventMapping.toResult(response, ImageAnnotations.mainColor(response));
+  }
+
+  @Benchmark
+  public Map<String, Object> pictureData() {
+    return ImageAnnotations.pictureData(result.labels(), result.mainColor());
+  }
+
+  // everything the controller does for one event apart from logging and I/O
+  @Benchmark
+  public Map<String, Object> requestPath() throws Exception {
+    StorageObjectData body = objectMapper.readValue(EVENT_BODY, StorageObjectData.class);
+    if (EventMapping.validateHeaders(CE_ID, CE_SOURCE, CE_TYPE, CE_SPECVERSION, CE_SUBJECT) != null) {
+      throw new IllegalStateException("fixture is missing a header");
+    }
+    AnnotationCache.key(body.md5Hash(), body.crc32c(), body.size());
+    AnalysisResult mapped = EventMapping.toResult(response, ImageAnnotations.mainColor(response));
+    return ImageAnnotations.pictureData(mapped.labels(), mapped.mainColor());
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Concurrency limit in front of the analysis path that adapts with AIMD: every call that finishes
+ * under the latency target adds 1/limit, so the limit grows by about one per round of calls, and
+ * a call that was overloaded or slower than the target multiplies it by the backoff ratio.
+ *
+ * Events over the limit are turned away with 429 so Eventarc retries them later, instead of being
+ * sent on to Vision while it is already returning RESOURCE_EXHAUSTED.
+ */
+@Component
+public class AdmissionLimiter {
+  private static final Logger logger = LoggerFactory.getLogger(AdmissionLimiter.class);
+
+  @Value("${admission.enabled:true}")
+  private boolean enabled;
+
+  @Value("${admission.initial-limit:20}")
+  private double initialLimit;
+
+  @Value("${admission.min-limit:2}")
+  private double minLimit;
+
+  @Value("${admission.max-limit:200}")
+  private double maxLimit;
+
+  // end-to-end latency of an admitted event above which the limit is reduced
+  @Value("${admission.latency-target-ms:5000}")
+  private long latencyTargetMillis;
+
+  @Value("${admission.backoff-ratio:0.9}")
+  private double backoffRatio;
+
+  @Value("${admission.retry-after-seconds:10}")
+  private long retryAfterSeconds;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private double limit;
+  private int inFlight;
+
+  private Counter rejected;
+
+  @PostConstruct
+  public void init() {
+    limit = initialLimit;
+    rejected = Counter.builder("analysis.admission.rejected")
+        .description("Events turned away with 429 because the concurrency limit was reached")
+        .register(meterRegistry);
+    meterRegistry.gauge("analysis.admission.limit", this, limiter -> limiter.limit());
+    meterRegistry.gauge("analysis.admission.inflight", this, limiter -> limiter.inFlight());
+  }
+
+  /** Takes a slot, or returns false if the limit is reached; a taken slot must be released. */
+  public synchronized boolean tryAcquire() {
+    if (!enabled) {
+      inFlight++;
+      return true;
+    }
+    if (inFlight >= (int) limit) {
+      rejected.increment();
+      return false;
+    }
+    inFlight++;
+    return true;
+  }
+
+  /**
+   * Gives the slot back and adjusts the limit.
+   *
+   * @param overloaded whether a dependency signalled overload, such as RESOURCE_EXHAUSTED
+   */
+  public synchronized void release(long latencyNanos, boolean overloaded) {
+    inFlight--;
+    if (overloaded || latencyNanos > TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis)) {
+      double reduced = Math.max(minLimit, limit * backoffRatio);
+      if ((int) reduced < (int) limit) {
+        logger.info("AdmissionLimiter: limit reduced to {} (overloaded: {}, latency: {} ms)",
+            (int) reduced, overloaded, TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+      }
+      limit = reduced;
+    } else {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+
+  public long retryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  synchronized double limit() {
+    return limit;
+  }
+
+  synchronized int inFlight() {
+    return inFlight;
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import analysis.CachedAnnotations;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Remembers Vision results by object content, so a re-upload of the same bytes skips Vision.
+ *
+ * Keys, the in-memory LRU and the Firestore documents come from {@link CachedAnnotations}, which
+ * the Cloud Function uses too. With annotation-cache.firestore.enabled, results are also persisted
+ * in Firestore behind the LRU, so they survive instance restarts and are shared between instances.
+ */
+@Component
+public class AnnotationCache {
+  private static final Logger logger = LoggerFactory.getLogger(AnnotationCache.class);
+
+  @Value("${annotation-cache.max-bytes:16777216}")
+  private long maxBytes;
+
+  @Value("${annotation-cache.firestore.enabled:false}")
+  private boolean firestoreEnabled;
+
+  @Value("${vision.cost-per-image-usd:0.003}")
+  private double visionCostPerImage;
+
+  @Autowired
+  private EventService eventService;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private CachedAnnotations memory;
+
+  // moving average of recent Vision latency, used to estimate what a hit saved
+  private volatile double visionLatencyNanos;
+
+  private Counter memoryHits;
+  private Counter firestoreHits;
+  private Counter misses;
+  private Counter visionSpendSaved;
+  private Timer latencySaved;
+
+  @PostConstruct
+  public void init() {
+    memory = new CachedAnnotations(maxBytes);
+    memoryHits = Counter.builder("analysis.annotation.cache")
+        .tag("tier", "memory").tag("result", "hit")
+        .register(meterRegistry);
+    firestoreHits = Counter.builder("analysis.annotation.cache")
+        .tag("tier", "firestore").tag("result", "hit")
+        .register(meterRegistry);
+    misses = Counter.builder("analysis.annotation.cache")
+        .tag("tier", "all").tag("result", "miss")
+        .register(meterRegistry);
+    visionSpendSaved = Counter.builder("analysis.vision.spend.saved")
+        .description("Estimated Vision API spend avoided")
+        .baseUnit("usd")
+        .tag("reason", "content-hash")
+        .register(meterRegistry);
+    latencySaved = Timer.builder("analysis.annotation.cache.latency.saved")
+        .description("Estimated Vision latency avoided by each cache hit")
+        .register(meterRegistry);
+    meterRegistry.gauge("analysis.annotation.cache.size.bytes", this, cache -> cache.bytes());
+  }
+
+  /** Builds the cache key for an object, or returns null if the event carries no usable hash. */
+  static String key(String md5Hash, String crc32c, Object size) {
+    return CachedAnnotations.key(md5Hash, crc32c, size);
+  }
+
+  /** Completes with the cached result, or with null on a miss. */
+  public CompletableFuture<AnalysisResult> get(String key) {
+    if (key == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    long start = System.nanoTime();
+
+    CachedAnnotations.Entry cached = memory.get(key);
+    if (cached != null) {
+      recordHit(memoryHits, start);
+      return CompletableFuture.completedFuture(toResult(cached));
+    }
+    if (!firestoreEnabled) {
+      misses.increment();
+      return CompletableFuture.completedFuture(null);
+    }
+
+    return FutureConverter.toCompletableFuture(eventService.findCachedAnnotation(key))
+        .handle((snapshot, t) -> {
+          if (t != null) {
+            logger.warn("AnnotationCache: lookup of " + key + " failed, treating it as a miss", t);
+            misses.increment();
+            return null;
+          }
+          CachedAnnotations.Entry entry = CachedAnnotations.fromSnapshot(snapshot);
+          if (entry == null) {
+            misses.increment();
+            return null;
+          }
+          memory.put(key, entry);
+          recordHit(firestoreHits, start);
+          return toResult(entry);
+        });
+  }
+
+  public void put(String key, AnalysisResult result) {
+    if (key == null) {
+      return;
+    }
+    memory.put(key, new CachedAnnotations.Entry(result.labels(), result.mainColor(), result.safe()));
+    if (firestoreEnabled) {
+      FutureConverter.toCompletableFuture(eventService.storeCachedAnnotation(key, result))
+          .exceptionally(t -> {
+            logger.warn("AnnotationCache: could not persist " + key, t);
+            return null;
+          });
+    }
+  }
+
+  public void recordVisionLatency(long nanos) {
+    double current = visionLatencyNanos;
+    visionLatencyNanos = current == 0 ? nanos : current * 0.8 + nanos * 0.2;
+  }
+
+  long bytes() {
+    return memory.bytes();
+  }
+
+  private void recordHit(Counter tier, long startNanos) {
+    tier.increment();
+    visionSpendSaved.increment(visionCostPerImage);
+    long saved = (long) visionLatencyNanos - (System.nanoTime() - startNanos);
+    if (saved > 0) {
+      latencySaved.record(saved, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private static AnalysisResult toResult(CachedAnnotations.Entry entry) {
+    return new AnalysisResult(entry.labels, entry.mainColor, entry.safe);
+  }
+}
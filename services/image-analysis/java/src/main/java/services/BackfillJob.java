@@ -0,0 +1,397 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.paging.Page;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.WriteResult;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.rpc.Code;
+
+import analysis.ImageAnnotations;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Re-analyses every picture already in a bucket, for when the labelling rules change.
+ *
+ * The object names are split into contiguous ranges at the configured split points, and the
+ * ranges are listed page by page in parallel using start and end offsets. Names are sent to
+ * Vision in batches under a global rate limit, and safe pictures are written through the
+ * EventService, which coalesces them with its BulkWriter.
+ *
+ * After each batch is written, the last name of the batch is checkpointed per range in the
+ * backfillCheckpoints collection. A job started again with the same id resumes each range after
+ * its checkpoint and skips finished ranges, so a crash costs at most one batch per range.
+ * Checkpoints are kept by range index, so the job records its prefix and split points and refuses
+ * to resume with different ones, which would apply each checkpoint to another range.
+ *
+ * Images that Vision answers with a transient error are retried with backoff within the batch.
+ * The names that still fail are kept in the checkpoint, and the next run retries them first.
+ */
+final class BackfillJob {
+  private static final Logger logger = LoggerFactory.getLogger(BackfillJob.class);
+
+  // per-image errors worth another attempt; the others, such as an unreadable image, would fail again
+  private static final EnumSet<Code> RETRYABLE_CODES = EnumSet.of(Code.RESOURCE_EXHAUSTED, Code.UNAVAILABLE,
+      Code.DEADLINE_EXCEEDED, Code.ABORTED, Code.INTERNAL);
+
+  // one range per leading character, for names of the usual letters and digits
+  static final String DEFAULT_SPLIT_POINTS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+  /** What to backfill and how fast; defaults match application.yaml. */
+  static final class Settings {
+    final String bucket;
+    String prefix = "";
+    String jobId;
+    // range boundaries after the prefix, in ascending order
+    List<String> splitPoints = splitPoints(DEFAULT_SPLIT_POINTS);
+    int parallelism = 8;
+    int pageSize = 1000;
+    // Vision's synchronous limit per request is 16 images
+    int batchSize = 16;
+    double maxImagesPerSecond = 10;
+    long progressIntervalSeconds = 10;
+    // attempts per image for transient Vision errors, the backoff doubling after each one
+    int retryAttempts = 3;
+    long retryBackoffMillis = 1000;
+
+    Settings(String bucket) {
+      this.bucket = bucket;
+      this.jobId = bucket;
+    }
+
+    static List<String> splitPoints(String characters) {
+      List<String> points = new ArrayList<>(characters.length());
+      for (int i = 0; i < characters.length(); i++) {
+        points.add(String.valueOf(characters.charAt(i)));
+      }
+      return points;
+    }
+  }
+
+  private final Storage storage;
+  private final EventService eventService;
+  private final ImageAnnotatorClient vision;
+  private final Settings settings;
+  private final RateLimiter rateLimiter;
+
+  private final Counter listed;
+  private final Counter stored;
+  private final Counter unsafe;
+  private final Counter failed;
+  private final Timer batchTimer;
+  private final AtomicInteger remainingPartitions = new AtomicInteger();
+
+  BackfillJob(Storage storage, EventService eventService, ImageAnnotatorClient vision, MeterRegistry meterRegistry,
+      Settings settings) {
+    this.storage = storage;
+    this.eventService = eventService;
+    this.vision = vision;
+    this.settings = settings;
+    this.rateLimiter = RateLimiter.create(settings.maxImagesPerSecond);
+
+    listed = Counter.builder("analysis.backfill.listed")
+        .description("Objects listed by the backfill")
+        .register(meterRegistry);
+    stored = backfillImages(meterRegistry, "stored");
+    unsafe = backfillImages(meterRegistry, "unsafe");
+    failed = backfillImages(meterRegistry, "failed");
+    batchTimer = Timer.builder("analysis.backfill.batch.duration")
+        .description("Vision call and Firestore writes for one backfill batch")
+        .register(meterRegistry);
+    meterRegistry.gauge("analysis.backfill.partitions.remaining", remainingPartitions);
+  }
+
+  private static Counter backfillImages(MeterRegistry meterRegistry, String result) {
+    return Counter.builder("analysis.backfill.images")
+        .tag("result", result)
+        .register(meterRegistry);
+  }
+
+  /** Runs every unfinished range; returns true if all of them completed. */
+  boolean run() throws InterruptedException, ExecutionException {
+    Map<String, Object> checkpoints = loadCheckpoints();
+    int partitions = settings.splitPoints.size() + 1;
+    remainingPartitions.set(partitions);
+    logger.info("BackfillJob {}: gs://{}/{} in {} ranges, {} images/s", settings.jobId, settings.bucket,
+        settings.prefix, partitions, settings.maxImagesPerSecond);
+
+    long start = System.nanoTime();
+    ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(daemon("backfill-progress"));
+    progress.scheduleAtFixedRate(() -> logProgress(start), settings.progressIntervalSeconds,
+        settings.progressIntervalSeconds, TimeUnit.SECONDS);
+    ExecutorService workers = Executors.newFixedThreadPool(settings.parallelism, daemon("backfill"));
+    try {
+      List<Future<Boolean>> results = new ArrayList<>(partitions);
+      for (int partition = 0; partition < partitions; partition++) {
+        int index = partition;
+        Object checkpoint = checkpoints.get(String.valueOf(partition));
+        results.add(workers.submit(() -> runPartition(index, checkpoint)));
+      }
+      boolean complete = true;
+      for (Future<Boolean> result : results) {
+        complete &= result.get();
+      }
+      return complete;
+    } finally {
+      workers.shutdownNow();
+      progress.shutdownNow();
+      logProgress(start);
+    }
+  }
+
+  private boolean runPartition(int partition, Object checkpoint) {
+    try {
+      String after = null;
+      boolean done = false;
+      List<String> failedNames = new ArrayList<>();
+      if (checkpoint instanceof Map<?, ?> progress) {
+        done = Boolean.TRUE.equals(progress.get("done"));
+        after = (String) progress.get("after");
+        if (progress.get("failed") instanceof List<?> names) {
+          for (Object name : names) {
+            failedNames.add((String) name);
+          }
+        }
+        if (done && failedNames.isEmpty()) {
+          return true;
+        }
+      }
+      return processPartition(partition, after, done, failedNames);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (Exception e) {
+      logger.error("BackfillJob {}: range {} stopped, run the job again to resume it", settings.jobId, partition, e);
+      return false;
+    } finally {
+      remainingPartitions.decrementAndGet();
+    }
+  }
+
+  // returns false if some images of the range still failed, so the job reports itself incomplete
+  private boolean processPartition(int partition, String after, boolean done, List<String> previouslyFailed)
+      throws InterruptedException, ExecutionException {
+    List<String> failedNames = retryFailed(previouslyFailed);
+    if (done) {
+      eventService.storeBackfillCheckpoint(settings.jobId, partition, after, true, failedNames).get();
+      return failedNames.isEmpty();
+    }
+
+    List<Storage.BlobListOption> options = new ArrayList<>();
+    options.add(Storage.BlobListOption.pageSize(settings.pageSize));
+    options.add(Storage.BlobListOption.fields(Storage.BlobField.NAME, Storage.BlobField.CONTENT_TYPE,
+        Storage.BlobField.TIME_CREATED));
+    if (!settings.prefix.isEmpty()) {
+      options.add(Storage.BlobListOption.prefix(settings.prefix));
+    }
+    // startOffset is inclusive, the checkpointed name itself is skipped below
+    String start = after != null ? after : partition == 0 ? null : settings.prefix + settings.splitPoints.get(partition - 1);
+    if (start != null) {
+      options.add(Storage.BlobListOption.startOffset(start));
+    }
+    if (partition < settings.splitPoints.size()) {
+      options.add(Storage.BlobListOption.endOffset(settings.prefix + settings.splitPoints.get(partition)));
+    }
+
+    String last = after;
+    List<Blob> batch = new ArrayList<>(settings.batchSize);
+    Page<Blob> page = storage.list(settings.bucket, options.toArray(new Storage.BlobListOption[0]));
+    while (page != null) {
+      for (Blob blob : page.getValues()) {
+        String name = blob.getName();
+        if (name.equals(after) || name.endsWith("/")) {
+          continue;
+        }
+        listed.increment();
+        if (blob.getContentType() != null && !blob.getContentType().startsWith("image/")) {
+          continue;
+        }
+        batch.add(blob);
+        if (batch.size() == settings.batchSize) {
+          failedNames.addAll(processBatch(batch));
+          last = batch.get(batch.size() - 1).getName();
+          eventService.storeBackfillCheckpoint(settings.jobId, partition, last, false, failedNames).get();
+          batch.clear();
+        }
+      }
+      page = page.hasNextPage() ? page.getNextPage() : null;
+    }
+    if (!batch.isEmpty()) {
+      failedNames.addAll(processBatch(batch));
+      last = batch.get(batch.size() - 1).getName();
+    }
+    eventService.storeBackfillCheckpoint(settings.jobId, partition, last, true, failedNames).get();
+    return failedNames.isEmpty();
+  }
+
+  // reprocesses the names a previous run recorded as failed; returns those that fail again
+  private List<String> retryFailed(List<String> names) throws InterruptedException, ExecutionException {
+    List<String> stillFailed = new ArrayList<>();
+    List<Blob> batch = new ArrayList<>(settings.batchSize);
+    for (String name : names) {
+      Blob blob = storage.get(settings.bucket, name,
+          Storage.BlobGetOption.fields(Storage.BlobField.NAME, Storage.BlobField.TIME_CREATED));
+      // null when the object was deleted since it failed
+      if (blob != null) {
+        batch.add(blob);
+      }
+      if (batch.size() == settings.batchSize) {
+        stillFailed.addAll(processBatch(batch));
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      stillFailed.addAll(processBatch(batch));
+    }
+    if (!names.isEmpty()) {
+      logger.info("BackfillJob {}: retried {} previously failed images, {} failed again", settings.jobId,
+          names.size(), stillFailed.size());
+    }
+    return stillFailed;
+  }
+
+  /**
+   * Annotates and stores one batch, retrying the images that get a transient error. Returns the
+   * names that still failed after the last attempt, for the checkpoint.
+   *
+   * A failed Vision call stops the range before its checkpoint moves, so the batch is retried on resume.
+   */
+  private List<String> processBatch(List<Blob> blobs) throws InterruptedException, ExecutionException {
+    long start = System.nanoTime();
+    List<ApiFuture<WriteResult>> writes = new ArrayList<>(blobs.size());
+    List<Blob> pending = annotate(blobs, writes);
+    for (int attempt = 1; !pending.isEmpty() && attempt < settings.retryAttempts; attempt++) {
+      logger.info("BackfillJob {}: retrying {} images after transient errors", settings.jobId, pending.size());
+      Thread.sleep(settings.retryBackoffMillis << (attempt - 1));
+      pending = annotate(pending, writes);
+    }
+    // the checkpoint may only move past writes that are durable
+    ApiFutures.allAsList(writes).get();
+    stored.increment(writes.size());
+    batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+    List<String> failedNames = new ArrayList<>(pending.size());
+    for (Blob blob : pending) {
+      logger.warn("BackfillJob {}: no annotations for {} after {} attempts, kept for the next run",
+          settings.jobId, blob.getName(), settings.retryAttempts);
+      failedNames.add(blob.getName());
+    }
+    failed.increment(failedNames.size());
+    return failedNames;
+  }
+
+  // sends one Vision request and adds the writes for the safe pictures; returns the images to retry
+  private List<Blob> annotate(List<Blob> blobs, List<ApiFuture<WriteResult>> writes) {
+    rateLimiter.acquire(blobs.size());
+    BatchAnnotateImagesRequest.Builder request = BatchAnnotateImagesRequest.newBuilder();
+    for (Blob blob : blobs) {
+      request.addRequests(ImageAnnotations.request(settings.bucket, blob.getName()));
+    }
+    BatchAnnotateImagesResponse response = vision.batchAnnotateImages(request.build());
+
+    List<Blob> retry = new ArrayList<>();
+    for (int i = 0; i < blobs.size(); i++) {
+      Blob blob = blobs.get(i);
+      AnnotateImageResponse image = i < response.getResponsesCount() ? response.getResponses(i) : null;
+      if (isRetryable(image)) {
+        retry.add(blob);
+        continue;
+      }
+      if (image.hasError()) {
+        logger.warn("BackfillJob {}: no annotations for {}: {}", settings.jobId, blob.getName(),
+            image.getError().getMessage());
+        failed.increment();
+        continue;
+      }
+      if (!ImageAnnotations.isSafe(image)) {
+        unsafe.increment();
+        continue;
+      }
+      // keep the upload order the frontend and collage sort by
+      Date created = blob.getCreateTime() != null ? new Date(blob.getCreateTime()) : null;
+      writes.add(eventService.storeBackfilledImage(blob.getName(), ImageAnnotations.labels(image),
+          ImageAnnotations.mainColor(image), created));
+    }
+    return retry;
+  }
+
+  private static boolean isRetryable(AnnotateImageResponse image) {
+    return image == null
+        || image.hasError() && RETRYABLE_CODES.contains(Code.forNumber(image.getError().getCode()));
+  }
+
+  private Map<String, Object> loadCheckpoints() throws InterruptedException, ExecutionException {
+    DocumentSnapshot snapshot = eventService.findBackfillCheckpoint(settings.jobId).get();
+    @SuppressWarnings("unchecked")
+    Map<String, Object> partitions = snapshot.exists() ? (Map<String, Object>) snapshot.get("partitions") : null;
+    if (partitions == null) {
+      eventService.storeBackfillLayout(settings.jobId, settings.prefix, settings.splitPoints).get();
+      return Map.of();
+    }
+    if (!settings.prefix.equals(snapshot.getString("prefix"))
+        || !settings.splitPoints.equals(snapshot.get("splitPoints"))) {
+      throw new IllegalStateException(String.format("BackfillJob %s was started with prefix '%s' and split "
+          + "points %s, run it with the same ones or use a new backfill.job-id", settings.jobId,
+          snapshot.getString("prefix"), snapshot.get("splitPoints")));
+    }
+    logger.info("BackfillJob {}: resuming from {} checkpointed ranges", settings.jobId, partitions.size());
+    return partitions;
+  }
+
+  private void logProgress(long startNanos) {
+    double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+    double analysed = stored.count() + unsafe.count() + failed.count();
+    logger.info(String.format("BackfillJob %s: listed %.0f, stored %.0f, unsafe %.0f, failed %.0f, "
+        + "%.1f images/s, %d ranges left", settings.jobId, listed.count(), stored.count(), unsafe.count(),
+        failed.count(), analysed / Math.max(seconds, 0.001), remainingPartitions.get()));
+  }
+
+  private static java.util.concurrent.ThreadFactory daemon(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
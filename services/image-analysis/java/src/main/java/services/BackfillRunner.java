@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Runs a {@link BackfillJob} over the bucket given in backfill.bucket once the application has
+ * started, then exits with status 0 if every range completed and 1 otherwise. Without that
+ * property the bean is not created and the service only handles events.
+ */
+@Component
+@ConditionalOnProperty("backfill.bucket")
+public class BackfillRunner implements ApplicationRunner {
+  private static final Logger logger = LoggerFactory.getLogger(BackfillRunner.class);
+
+  @Value("${backfill.bucket}")
+  private String bucket;
+
+  @Value("${backfill.prefix:}")
+  private String prefix;
+
+  // defaults to the bucket name; use a new id to reprocess a bucket from the start
+  @Value("${backfill.job-id:}")
+  private String jobId;
+
+  @Value("${backfill.split-points:" + BackfillJob.DEFAULT_SPLIT_POINTS + "}")
+  private String splitPoints;
+
+  @Value("${backfill.parallelism:8}")
+  private int parallelism;
+
+  @Value("${backfill.page-size:1000}")
+  private int pageSize;
+
+  @Value("${backfill.batch-size:16}")
+  private int batchSize;
+
+  @Value("${backfill.max-images-per-second:10}")
+  private double maxImagesPerSecond;
+
+  @Value("${backfill.progress-interval-seconds:10}")
+  private long progressIntervalSeconds;
+
+  @Value("${backfill.retry-attempts:3}")
+  private int retryAttempts;
+
+  @Value("${backfill.retry-backoff-ms:1000}")
+  private long retryBackoffMillis;
+
+  // e.g. http://localhost:4443 for a storage emulator
+  @Value("${backfill.storage-host:}")
+  private String storageHost;
+
+  @Value("${backfill.exit-when-done:true}")
+  private boolean exitWhenDone;
+
+  @Autowired
+  private EventService eventService;
+
+  @Autowired
+  private VisionClientProvider visionClientProvider;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Autowired
+  private ApplicationContext context;
+
+  @Override
+  public void run(ApplicationArguments args) throws Exception {
+    BackfillJob.Settings settings = new BackfillJob.Settings(bucket);
+    settings.prefix = prefix;
+    if (!jobId.isEmpty()) {
+      settings.jobId = jobId;
+    }
+    settings.splitPoints = splitPoints.contains(",")
+        ? Arrays.asList(splitPoints.split(","))
+        : BackfillJob.Settings.splitPoints(splitPoints);
+    settings.parallelism = parallelism;
+    settings.pageSize = pageSize;
+    settings.batchSize = batchSize;
+    settings.maxImagesPerSecond = maxImagesPerSecond;
+    settings.progressIntervalSeconds = progressIntervalSeconds;
+    settings.retryAttempts = retryAttempts;
+    settings.retryBackoffMillis = retryBackoffMillis;
+
+    BackfillJob job = new BackfillJob(storage(), eventService, visionClientProvider.getClient(), meterRegistry,
+        settings);
+    boolean complete = job.run();
+    logger.info("BackfillJob {}: {}", settings.jobId, complete ? "complete" : "incomplete, run again to resume");
+
+    if (exitWhenDone) {
+      int status = complete ? 0 : 1;
+      System.exit(SpringApplication.exit(context, () -> status));
+    }
+  }
+
+  private Storage storage() {
+    if (storageHost.isEmpty()) {
+      return StorageOptions.getDefaultInstance().getService();
+    }
+    return StorageOptions.newBuilder()
+        .setHost(storageHost)
+        .setCredentials(NoCredentials.getInstance())
+        .build()
+        .getService();
+  }
+}
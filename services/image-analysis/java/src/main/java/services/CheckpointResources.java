@@ -0,0 +1,64 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import javax.annotation.PostConstruct;
+
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * CRaC hooks for the connections Spring does not manage: the Vision channels and the Firestore
+ * client are closed before a checkpoint, since open sockets cannot be saved, and opened again
+ * after restore. On a JVM without CRaC support the registration is a no-op.
+ */
+@Component
+public class CheckpointResources implements Resource {
+  private static final Logger logger = LoggerFactory.getLogger(CheckpointResources.class);
+
+  @Autowired
+  private VisionClientProvider visionClientProvider;
+
+  @Autowired
+  private EventService eventService;
+
+  @PostConstruct
+  public void register() {
+    // the global context only holds a weak reference, the bean keeps this resource alive
+    Core.getGlobalContext().register(this);
+  }
+
+  @Override
+  public void beforeCheckpoint(Context<? extends Resource> context) throws Exception {
+    logger.info("CheckpointResources: closing Vision and Firestore clients before checkpoint");
+    visionClientProvider.shutdown();
+    eventService.close();
+  }
+
+  @Override
+  public void afterRestore(Context<? extends Resource> context) throws Exception {
+    long start = System.nanoTime();
+    eventService.reopen();
+    visionClientProvider.getClient();
+    logger.info("CheckpointResources: clients reopened after restore in {} ms",
+        (System.nanoTime() - start) / 1_000_000);
+  }
+}
@@ -15,21 +15,27 @@
  */
 package services;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.stream.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 
 import javax.annotation.PostConstruct;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -39,169 +45,423 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
 
-import services.actuator.StartupCheck;
-
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
 import com.google.cloud.vision.v1.*;
-import com.google.cloud.vision.v1.Feature.Type;
-import com.google.cloud.firestore.*;
-import com.google.api.core.ApiFuture;
+import com.google.rpc.Code;
+
+import analysis.ImageAnnotations;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
 @RestController
 public class EventController {
     private static final Logger logger = LoggerFactory.getLogger(EventController.class);
-    
-  private static final List<String> requiredFields = Arrays.asList("ce-id", "ce-source", "ce-type", "ce-specversion");
 
+  private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+  static final String STRUCTURED_MEDIA_TYPE = "application/cloudevents+json";
+  static final String BATCH_MEDIA_TYPE = "application/cloudevents-batch+json";
+    
   @Autowired
   private EventService eventService;
 
+  @Autowired
+  private VisionHedger visionHedger;
+
+  // time Eventarc gives one delivery, the Cloud Run request timeout unless it is set lower
+  @Value("${vision.deadline.event-budget-ms:60000}")
+  private long eventBudgetMillis;
+
+  // kept back from the budget for the Firestore write after Vision answers
+  @Value("${vision.deadline.reserve-ms:5000}")
+  private long deadlineReserveMillis;
+
+  @Value("${vision.deadline.max-call-ms:30000}")
+  private long maxCallMillis;
+
+  @Value("${batch.max-events:500}")
+  private int maxBatchEvents;
+
+  // events of one batch analysed at the same time, each still goes through admission
+  @Value("${batch.max-concurrency:16}")
+  private int batchConcurrency;
+
+  @Autowired
+  private EventDeduplicator eventDeduplicator;
+
+  @Autowired
+  private AnnotationCache annotationCache;
+
+  @Autowired
+  private AdmissionLimiter admissionLimiter;
+
+  @Autowired
+  private LocalColorExtractor localColorExtractor;
+
+  @Autowired
+  private NearDuplicateIndex nearDuplicateIndex;
+
+  @Autowired
+  private PictureBytes pictureBytes;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private Timer validationTimer;
+  private Timer visionTimer;
+  private Timer safeSearchTimer;
+  private Timer firestoreWriteTimer;
+  private Counter unsafeImages;
+  private Counter erroredResponses;
+  private Counter emptyResponses;
+  private DistributionSummary batchSizes;
+  private final Map<Integer, Timer> eventTimers = new ConcurrentHashMap<>();
+
   @PostConstruct
   public void init() {
-    logger.info("ImageAnalysisApplication: EventController Post Construct Initializer " + new SimpleDateFormat("HH:mm:ss.SSS").format(new java.util.Date(System.currentTimeMillis())));
-    logger.info("ImageAnalysisApplication: EventController Post Construct - StartupCheck can be enabled");
-
-    StartupCheck.up();
+    validationTimer = stageTimer("validation");
+    safeSearchTimer = stageTimer("safe-search");
+    firestoreWriteTimer = stageTimer("firestore-write");
+    // a single annotate call covers all features, so its latency is tagged with the feature set
+    visionTimer = Timer.builder("analysis.vision.latency")
+        .description("Vision annotate latency, including batching")
+        .tag("features", localColorExtractor.enabled()
+            ? "label_detection,safe_search_detection"
+            : "label_detection,image_properties,safe_search_detection")
+        .register(meterRegistry);
+    unsafeImages = Counter.builder("analysis.images.unsafe")
+        .description("Images rejected by safe search")
+        .register(meterRegistry);
+    erroredResponses = Counter.builder("analysis.vision.responses")
+        .tag("result", "error")
+        .register(meterRegistry);
+    emptyResponses = Counter.builder("analysis.vision.responses")
+        .tag("result", "empty")
+        .register(meterRegistry);
+    batchSizes = DistributionSummary.builder("analysis.batch.events")
+        .description("Events per batched CloudEvents request")
+        .register(meterRegistry);
+
+    logger.info("ImageAnalysisApplication: EventController Post Construct Initializer {}", LocalTime.now().format(TIME_FORMAT));
+    logger.info("EventController: Active processors: {}", Runtime.getRuntime().availableProcessors());
+    logger.info("ImageAnalysisApplication: EventController Post Construct - StartupCheck is enabled by StartupWarmer");
   }
 
   @GetMapping("start")
   String start(){
-    logger.info("ImageAnalysisApplication: EventController - Executed start endpoint request " + new SimpleDateFormat("HH:mm:ss.SSS").format(new java.util.Date(System.currentTimeMillis())));
+    logger.info("ImageAnalysisApplication: EventController - Executed start endpoint request {}", LocalTime.now().format(TIME_FORMAT));
     return "EventController started";
   }
 
+  // binds only the fields and headers the handler reads; the full event is dumped at DEBUG level
   @RequestMapping(value = "/", method = RequestMethod.POST)
-  public ResponseEntity<String> receiveMessage(
-    @RequestBody Map<String, Object> body, @RequestHeader Map<String, String> headers) throws IOException, InterruptedException, ExecutionException {
-
-    // Validate the number of available processors
-    logger.info("EventController: Active processors: " + Runtime.getRuntime().availableProcessors()); 
-
-    System.out.println("Header elements");
-    for (String field : requiredFields) {
-      if (headers.get(field) == null) {
-        String msg = String.format("Missing expected header: %s.", field);
-        System.out.println(msg);
-        return new ResponseEntity<String>(msg, HttpStatus.BAD_REQUEST);
-      } else {
-        System.out.println(field + " : " + headers.get(field));
+  public CompletableFuture<ResponseEntity<String>> receiveMessage(
+    @RequestBody StorageObjectData body,
+    @RequestHeader(value = "ce-id", required = false) String ceId,
+    @RequestHeader(value = "ce-source", required = false) String ceSource,
+    @RequestHeader(value = "ce-type", required = false) String ceType,
+    @RequestHeader(value = "ce-specversion", required = false) String ceSpecversion,
+    @RequestHeader(value = "ce-subject", required = false) String ceSubject) {
+    long start = System.nanoTime();
+    return timed(handle(body, ceId, ceSource, ceType, ceSpecversion, ceSubject, visionDeadline(start)), start);
+  }
+
+  // one structured-mode CloudEvent: the ce-* attributes are members of the JSON body
+  @RequestMapping(value = "/", method = RequestMethod.POST, consumes = STRUCTURED_MEDIA_TYPE)
+  public CompletableFuture<ResponseEntity<String>> receiveStructured(@RequestBody StructuredCloudEvent event) {
+    long start = System.nanoTime();
+    return timed(handle(event, visionDeadline(start)), start);
+  }
+
+  /**
+   * A JSON array of structured CloudEvents, analysed in parallel by at most batch.max-concurrency
+   * at a time. Answers 200 when every event succeeded and 207 otherwise, with the status each
+   * event would have had on its own; the caller resends only the failed ones.
+   */
+  @RequestMapping(value = "/", method = RequestMethod.POST, consumes = BATCH_MEDIA_TYPE)
+  public CompletableFuture<ResponseEntity<List<EventStatus>>> receiveBatch(
+      @RequestBody List<StructuredCloudEvent> events) {
+    if (events.size() > maxBatchEvents) {
+      return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build());
+    }
+    batchSizes.record(events.size());
+    // the whole batch shares the request's deadline
+    long visionDeadlineNanos = visionDeadline(System.nanoTime());
+    EventStatus[] statuses = new EventStatus[events.size()];
+    AtomicInteger next = new AtomicInteger();
+
+    CompletableFuture<?>[] workers = new CompletableFuture<?>[Math.min(batchConcurrency, events.size())];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = processNext(events, statuses, next, visionDeadlineNanos);
+    }
+    return CompletableFuture.allOf(workers).thenApply(done -> {
+      boolean allSucceeded = true;
+      for (EventStatus status : statuses) {
+        allSucceeded &= status.status() < 300;
       }
+      return ResponseEntity.status(allSucceeded ? HttpStatus.OK : HttpStatus.MULTI_STATUS)
+          .body(Arrays.asList(statuses));
+    });
+  }
+
+  // each worker takes the next unclaimed event once its current one is done
+  private CompletableFuture<Void> processNext(List<StructuredCloudEvent> events, EventStatus[] statuses,
+      AtomicInteger next, long visionDeadlineNanos) {
+    int index = next.getAndIncrement();
+    if (index >= events.size()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    StructuredCloudEvent event = events.get(index);
+    long start = System.nanoTime();
+    CompletableFuture<ResponseEntity<String>> handled;
+    try {
+      handled = handle(event, visionDeadlineNanos);
+    } catch (RuntimeException e) {
+      handled = CompletableFuture.failedFuture(e);
     }
+    return timed(handled, start)
+        .handle((response, t) -> {
+          if (t != null) {
+            logger.error("Event {} of the batch failed", event == null ? null : event.id(), t);
+          }
+          statuses[index] = EventStatus.of(event == null ? null : event.id(), response, t);
+          return null;
+        })
+        .thenCompose(done -> processNext(events, statuses, next, visionDeadlineNanos));
+  }
 
-    System.out.println("Body elements");
-    for (String bodyField : body.keySet()) {
-      System.out.println(bodyField + " : " + body.get(bodyField));
+  private CompletableFuture<ResponseEntity<String>> handle(StructuredCloudEvent event, long visionDeadlineNanos) {
+    if (event == null || event.data() == null) {
+      return CompletableFuture.completedFuture(
+          new ResponseEntity<String>("Missing CloudEvent data.", HttpStatus.BAD_REQUEST));
     }
+    return handle(event.data(), event.id(), event.source(), event.type(), event.specversion(), event.subject(),
+        visionDeadlineNanos);
+  }
 
-    if (headers.get("ce-subject") == null) {
-      String msg = "Missing expected header: ce-subject.";
-      System.out.println(msg);
-      return new ResponseEntity<String>(msg, HttpStatus.BAD_REQUEST);
+  private CompletableFuture<ResponseEntity<String>> timed(CompletableFuture<ResponseEntity<String>> handled,
+      long startNanos) {
+    return handled.whenComplete((response, t) -> eventTimer(t != null ? -1 : response.getStatusCode().value())
+        .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS));
+  }
+
+  // the Vision call must finish in time to leave the reserve for the Firestore write
+  private long visionDeadline(long receivedNanos) {
+    long budget = TimeUnit.MILLISECONDS.toNanos(Math.min(eventBudgetMillis - deadlineReserveMillis, maxCallMillis));
+    return receivedNanos + Math.max(budget, 0);
+  }
+
+  private CompletableFuture<ResponseEntity<String>> handle(StorageObjectData body, String ceId, String ceSource,
+      String ceType, String ceSpecversion, String ceSubject, long visionDeadlineNanos) {
+    Timer.Sample validation = Timer.start(meterRegistry);
+
+    if (logger.isDebugEnabled()) {
+      logger.debug("Event {} from {}: type={} specversion={} subject={} body={}",
+          ceId, ceSource, ceType, ceSpecversion, ceSubject, body);
+    }
+
+    String missingHeader = EventMapping.validateHeaders(ceId, ceSource, ceType, ceSpecversion, ceSubject);
+    if (missingHeader != null) {
+      logger.info(missingHeader);
+      validation.stop(validationTimer);
+      return CompletableFuture.completedFuture(new ResponseEntity<String>(missingHeader, HttpStatus.BAD_REQUEST));
     }
 
-    String ceSubject = headers.get("ce-subject");
     String msg = "Detected change in Cloud Storage bucket: (ce-subject) : " + ceSubject;
-    System.out.println(msg);
-
-    String fileName = (String)body.get("name");
-    String bucketName = (String)body.get("bucket");
-
-    logger.info("New picture uploaded " + fileName);
-
-    try (ImageAnnotatorClient vision = ImageAnnotatorClient.create()) {
-        List<AnnotateImageRequest> requests = new ArrayList<>();
-        
-        ImageSource imageSource = ImageSource.newBuilder()
-            .setGcsImageUri("gs://" + bucketName + "/" + fileName)
-            .build();
-
-        Image image = Image.newBuilder()
-            .setSource(imageSource)
-            .build();
-
-        Feature featureLabel = Feature.newBuilder()
-            .setType(Type.LABEL_DETECTION)
-            .build();
-        Feature featureImageProps = Feature.newBuilder()
-            .setType(Type.IMAGE_PROPERTIES)
-            .build();
-        Feature featureSafeSearch = Feature.newBuilder()
-            .setType(Type.SAFE_SEARCH_DETECTION)
-            .build();
-            
-        AnnotateImageRequest request = AnnotateImageRequest.newBuilder()
-            .addFeatures(featureLabel)
-            .addFeatures(featureImageProps)
-            .addFeatures(featureSafeSearch)
-            .setImage(image)
-            .build();
-        
-        requests.add(request);
-
-        logger.info("Calling the Vision API...");
-        BatchAnnotateImagesResponse result = vision.batchAnnotateImages(requests);
-        List<AnnotateImageResponse> responses = result.getResponsesList();
-
-        if (responses.size() == 0) {
-            logger.info("No response received from Vision API.");
-            return new ResponseEntity<String>(msg, HttpStatus.BAD_REQUEST);
-        }
-
-        AnnotateImageResponse response = responses.get(0);
-        if (response.hasError()) {
-            logger.info("Error: " + response.getError().getMessage());
-            return new ResponseEntity<String>(msg, HttpStatus.BAD_REQUEST);
-        }
-
-        List<String> labels = response.getLabelAnnotationsList().stream()
-            .map(annotation -> annotation.getDescription())
-            .collect(Collectors.toList());
-        logger.info("Annotations found:");
-        for (String label: labels) {
-            logger.info("- " + label);
-        }
-
-        String mainColor = "#FFFFFF";
-        ImageProperties imgProps = response.getImagePropertiesAnnotation();
-        if (imgProps.hasDominantColors()) {
-            DominantColorsAnnotation colorsAnn = imgProps.getDominantColors();
-            ColorInfo colorInfo = colorsAnn.getColors(0);
-
-            mainColor = rgbHex(
-                colorInfo.getColor().getRed(), 
-                colorInfo.getColor().getGreen(), 
-                colorInfo.getColor().getBlue());
-
-            logger.info("Color: " + mainColor);
-        }
-
-        boolean isSafe = false;
-        if (response.hasSafeSearchAnnotation()) {
-            SafeSearchAnnotation safeSearch = response.getSafeSearchAnnotation();
-
-            isSafe = Stream.of(
-                safeSearch.getAdult(), safeSearch.getMedical(), safeSearch.getRacy(),
-                safeSearch.getSpoof(), safeSearch.getViolence())
-            .allMatch( likelihood -> 
-                likelihood != Likelihood.LIKELY && likelihood != Likelihood.VERY_LIKELY
-            );
-
-            logger.info("Safe? " + isSafe);
-        }
-
-        // Saving result to Firestore
-        if (isSafe) {
-          ApiFuture<WriteResult> writeResult = eventService.storeImage(fileName, labels,
-              mainColor);
-          logger.info("Picture metadata saved in Firestore at " + writeResult.get().getUpdateTime());
-        }
+
+    String fileName = body.name();
+    String bucketName = body.bucket();
+
+    logger.info("New picture uploaded {}", fileName);
+
+    String contentKey = AnnotationCache.key(body.md5Hash(), body.crc32c(), body.size());
+    validation.stop(validationTimer);
+
+    return eventDeduplicator.process(ceId,
+        () -> admitted(msg, () -> annotationCache.get(contentKey)
+            .thenCompose(cached -> {
+              if (cached != null) {
+                logger.info("Reusing cached annotations for {} ({})", fileName, contentKey);
+                return store(fileName, cached, msg);
+              }
+              return analyzeAndStore(fileName, bucketName, contentKey, msg, visionDeadlineNanos);
+            })));
+  }
+
+  // runs the analysis under the adaptive concurrency limit, answering 429 when it is reached
+  private CompletableFuture<ResponseEntity<String>> admitted(String msg,
+      Supplier<CompletableFuture<ResponseEntity<String>>> analysis) {
+    if (!admissionLimiter.tryAcquire()) {
+      return CompletableFuture.completedFuture(tooManyRequests(msg));
+    }
+    long started = System.nanoTime();
+    CompletableFuture<ResponseEntity<String>> result;
+    try {
+      result = analysis.get();
+    } catch (RuntimeException e) {
+      admissionLimiter.release(System.nanoTime() - started, false);
+      throw e;
+    }
+    return result.handle((response, t) -> {
+      boolean exhausted = isResourceExhausted(t);
+      boolean timedOut = isTimeout(t);
+      admissionLimiter.release(System.nanoTime() - started,
+          exhausted || timedOut || (response != null && response.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS));
+      if (exhausted) {
+        return tooManyRequests(msg);
+      }
+      if (timedOut) {
+        logger.info("Vision did not answer within the event deadline");
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, String.valueOf(admissionLimiter.retryAfterSeconds()))
+            .body(msg);
+      }
+      if (t != null) {
+        throw t instanceof CompletionException ? (CompletionException) t : new CompletionException(t);
+      }
+      return response;
+    });
+  }
+
+  private ResponseEntity<String> tooManyRequests(String msg) {
+    return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+        .header(HttpHeaders.RETRY_AFTER, String.valueOf(admissionLimiter.retryAfterSeconds()))
+        .body(msg);
+  }
+
+  private static boolean isResourceExhausted(Throwable t) {
+    Throwable cause = rootCause(t);
+    return cause instanceof ApiException
+        && ((ApiException) cause).getStatusCode().getCode() == StatusCode.Code.RESOURCE_EXHAUSTED;
+  }
+
+  // the event deadline passed, either locally or as the RPC timeout of the Vision call
+  static boolean isTimeout(Throwable t) {
+    Throwable cause = rootCause(t);
+    return cause instanceof TimeoutException
+        || (cause instanceof ApiException
+            && ((ApiException) cause).getStatusCode().getCode() == StatusCode.Code.DEADLINE_EXCEEDED);
+  }
+
+  private static Throwable rootCause(Throwable t) {
+    while (t instanceof CompletionException || t instanceof ExecutionException) {
+      t = t.getCause();
     }
+    return t;
+  }
 
-    return new ResponseEntity<String>(msg, HttpStatus.OK);
+  private CompletableFuture<ResponseEntity<String>> analyzeAndStore(String fileName, String bucketName,
+      String contentKey, String msg, long visionDeadlineNanos) {
+    boolean localColor = localColorExtractor.enabled();
+    boolean nearDuplicates = nearDuplicateIndex.enabled();
+    CompletableFuture<byte[]> picture = localColor || nearDuplicates ? pictureBytes.fetch(bucketName, fileName) : null;
+    // decoded while Vision works on the rest
+    CompletableFuture<String> mainColor = localColor ? localColorExtractor.mainColor(fileName, picture) : null;
+
+    if (!nearDuplicates) {
+      return annotateAndStore(fileName, bucketName, contentKey, msg, visionDeadlineNanos, mainColor, null);
+    }
+    return nearDuplicateIndex.fingerprint(fileName, picture)
+        .thenCompose(hash -> {
+          AnalysisResult match = hash == null ? null : nearDuplicateIndex.find(hash);
+          if (match != null) {
+            logger.info("Reusing annotations of a near-duplicate picture for {}", fileName);
+            annotationCache.put(contentKey, match);
+            return store(fileName, match, msg);
+          }
+          return annotateAndStore(fileName, bucketName, contentKey, msg, visionDeadlineNanos, mainColor, hash);
+        });
   }
 
+  private CompletableFuture<ResponseEntity<String>> annotateAndStore(String fileName, String bucketName,
+      String contentKey, String msg, long visionDeadlineNanos, CompletableFuture<String> mainColor, Long hash) {
+    AnnotateImageRequest request = ImageAnnotations.request(bucketName, fileName, mainColor == null);
+
+    logger.info("Calling the Vision API...");
+    long visionStart = System.nanoTime();
+    return visionHedger.annotate(request, visionDeadlineNanos)
+        .whenComplete((response, t) -> {
+          if (t != null) {
+            erroredResponses.increment();
+          }
+        })
+        .thenCompose(response -> {
+          long visionNanos = System.nanoTime() - visionStart;
+          annotationCache.recordVisionLatency(visionNanos);
+          visionTimer.record(visionNanos, TimeUnit.NANOSECONDS);
+          if (response == null) {
+              logger.info("No response received from Vision API.");
+              emptyResponses.increment();
+              return CompletableFuture.completedFuture(new ResponseEntity<String>(msg, HttpStatus.BAD_REQUEST));
+          }
+
+          if (response.hasError()) {
+              logger.info("Error: {}", response.getError().getMessage());
+              erroredResponses.increment();
+              if (response.getError().getCode() == Code.RESOURCE_EXHAUSTED_VALUE) {
+                return CompletableFuture.completedFuture(tooManyRequests(msg));
+              }
+              return CompletableFuture.completedFuture(new ResponseEntity<String>(msg, HttpStatus.BAD_REQUEST));
+          }
+
+          CompletableFuture<String> color = mainColor != null
+              ? mainColor
+              : CompletableFuture.completedFuture(ImageAnnotations.mainColor(response));
+          return color.thenCompose(main -> {
+            AnalysisResult result = analyze(response, main);
+            annotationCache.put(contentKey, result);
+            if (hash != null) {
+              nearDuplicateIndex.add(hash, result);
+            }
+            return store(fileName, result, msg);
+          });
+        });
+  }
+
+  private CompletableFuture<ResponseEntity<String>> store(String fileName, AnalysisResult result, String msg) {
+    // Saving result to Firestore
+    if (!result.safe()) {
+      unsafeImages.increment();
+      return CompletableFuture.completedFuture(new ResponseEntity<String>(msg, HttpStatus.OK));
+    }
+    Timer.Sample write = Timer.start(meterRegistry);
+    return FutureConverter.toCompletableFuture(
+            eventService.storeImage(fileName, result.labels(), result.mainColor()))
+        .whenComplete((writeResult, t) -> write.stop(firestoreWriteTimer))
+        .thenApply(writeResult -> {
+          logger.info("Picture metadata saved in Firestore at {}", writeResult.getUpdateTime());
+          return new ResponseEntity<String>(msg, HttpStatus.OK);
+        });
+  }
+
+  private AnalysisResult analyze(AnnotateImageResponse response, String mainColor) {
+    // the mapping the benchmarks and the startup warm-up run; copying the labels is negligible
+    // next to the safe-search evaluation this stage is named after
+    Timer.Sample safeSearchEvaluation = Timer.start(meterRegistry);
+    AnalysisResult result = EventMapping.toResult(response, mainColor);
+    safeSearchEvaluation.stop(safeSearchTimer);
+
+    logger.info("Annotations found: {}, color: {}, safe? {}", result.labels(), mainColor, result.safe());
+    return result;
+  }
+
+  // one timer per response status, looked up without building a new meter id on every event
+  private Timer eventTimer(int status) {
+    return eventTimers.computeIfAbsent(status, code -> Timer.builder("analysis.event.latency")
+        .description("End-to-end event handling latency")
+        .tag("status", code < 0 ? "exception" : String.valueOf(code))
+        .register(meterRegistry));
+  }
 
-  private static String rgbHex(float red, float green, float blue) {
-    return String.format("#%02x%02x%02x", (int)red, (int)green, (int)blue);
+  private Timer stageTimer(String stage) {
+    return Timer.builder("analysis.stage.duration")
+        .description("Time spent in one stage of event handling")
+        .tag("stage", stage)
+        .register(meterRegistry);
   }
 
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Drops redeliveries of a CloudEvent that was already processed, keyed on ce-id.
+ *
+ * Recently seen event IDs are kept in a bounded in-memory map whose entries expire after
+ * dedup.ttl-seconds. The map holds the event's result future, so a delivery that arrives while
+ * the first one is still in flight shares its outcome. Only successful results are remembered;
+ * failures are forgotten so the redelivery gets a fresh attempt. With dedup.firestore-marker.enabled
+ * a marker document is also written after success, so other instances skip the event as well.
+ */
+@Component
+public class EventDeduplicator {
+  private static final Logger logger = LoggerFactory.getLogger(EventDeduplicator.class);
+
+  @Value("${dedup.max-entries:10000}")
+  private int maxEntries;
+
+  @Value("${dedup.ttl-seconds:3600}")
+  private long ttlSeconds;
+
+  @Value("${dedup.firestore-marker.enabled:false}")
+  private boolean firestoreMarkerEnabled;
+
+  @Value("${vision.cost-per-image-usd:0.003}")
+  private double visionCostPerImage;
+
+  @Autowired
+  private EventService eventService;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  // guarded by itself; insertion order is also expiry order since every entry has the same TTL
+  private final LinkedHashMap<String, Entry> recentEvents = new LinkedHashMap<>();
+
+  private Counter receivedEvents;
+  private Counter memoryHits;
+  private Counter firestoreHits;
+  private Counter visionSpendSaved;
+
+  @PostConstruct
+  public void init() {
+    receivedEvents = Counter.builder("analysis.events.received")
+        .description("CloudEvents that passed validation")
+        .register(meterRegistry);
+    memoryHits = Counter.builder("analysis.events.deduplicated")
+        .description("Redelivered CloudEvents answered without reprocessing")
+        .tag("tier", "memory")
+        .register(meterRegistry);
+    firestoreHits = Counter.builder("analysis.events.deduplicated")
+        .description("Redelivered CloudEvents answered without reprocessing")
+        .tag("tier", "firestore")
+        .register(meterRegistry);
+    visionSpendSaved = Counter.builder("analysis.vision.spend.saved")
+        .description("Estimated Vision API spend avoided")
+        .baseUnit("usd")
+        .tag("reason", "duplicate-event")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Runs the handler for the event unless the event was already processed or is in flight, in
+   * which case the earlier result is returned.
+   */
+  public CompletableFuture<ResponseEntity<String>> process(String eventId,
+      Supplier<CompletableFuture<ResponseEntity<String>>> handler) {
+    receivedEvents.increment();
+
+    CompletableFuture<ResponseEntity<String>> result;
+    synchronized (recentEvents) {
+      long now = System.nanoTime();
+      evictExpired(now);
+      Entry existing = recentEvents.get(eventId);
+      if (existing != null) {
+        memoryHits.increment();
+        visionSpendSaved.increment(visionCostPerImage);
+        logger.info("EventDeduplicator: event {} already seen, sharing its result", eventId);
+        return existing.result;
+      }
+      result = new CompletableFuture<>();
+      recentEvents.put(eventId, new Entry(result, now + TimeUnit.SECONDS.toNanos(ttlSeconds)));
+      if (recentEvents.size() > maxEntries) {
+        Iterator<Map.Entry<String, Entry>> eldest = recentEvents.entrySet().iterator();
+        eldest.next();
+        eldest.remove();
+      }
+    }
+
+    CompletableFuture<ResponseEntity<String>> processing = firestoreMarkerEnabled
+        ? FutureConverter.toCompletableFuture(eventService.findProcessedEvent(eventId))
+            .thenCompose(marker -> {
+              if (marker.exists()) {
+                firestoreHits.increment();
+                visionSpendSaved.increment(visionCostPerImage);
+                String msg = "Event " + eventId + " was already processed";
+                logger.info("EventDeduplicator: " + msg);
+                return CompletableFuture.completedFuture(new ResponseEntity<String>(msg, HttpStatus.OK));
+              }
+              return invoke(handler).thenCompose(response -> markProcessed(eventId, response));
+            })
+        : invoke(handler);
+
+    processing.whenComplete((response, t) -> {
+      if (t != null || !response.getStatusCode().is2xxSuccessful()) {
+        forget(eventId, result);
+      }
+      if (t != null) {
+        result.completeExceptionally(t);
+      } else {
+        result.complete(response);
+      }
+    });
+    return result;
+  }
+
+  private static CompletableFuture<ResponseEntity<String>> invoke(
+      Supplier<CompletableFuture<ResponseEntity<String>>> handler) {
+    try {
+      return handler.get();
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  private CompletableFuture<ResponseEntity<String>> markProcessed(String eventId, ResponseEntity<String> response) {
+    if (!response.getStatusCode().is2xxSuccessful()) {
+      return CompletableFuture.completedFuture(response);
+    }
+    Date expireAt = new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds));
+    return FutureConverter.toCompletableFuture(eventService.markEventProcessed(eventId, expireAt))
+        .handle((writeResult, t) -> {
+          if (t != null) {
+            // the event itself succeeded; worst case another instance reprocesses it
+            logger.warn("EventDeduplicator: could not record event " + eventId + " as processed", t);
+          }
+          return response;
+        });
+  }
+
+  private void forget(String eventId, CompletableFuture<ResponseEntity<String>> result) {
+    synchronized (recentEvents) {
+      Entry entry = recentEvents.get(eventId);
+      if (entry != null && entry.result == result) {
+        recentEvents.remove(eventId);
+      }
+    }
+  }
+
+  // must hold the recentEvents lock
+  private void evictExpired(long now) {
+    Iterator<Entry> entries = recentEvents.values().iterator();
+    while (entries.hasNext() && entries.next().expiresAtNanos - now <= 0) {
+      entries.remove();
+    }
+  }
+
+  private static final class Entry {
+    final CompletableFuture<ResponseEntity<String>> result;
+    final long expiresAtNanos;
+
+    Entry(CompletableFuture<ResponseEntity<String>> result, long expiresAtNanos) {
+      this.result = result;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+
+import analysis.ImageAnnotations;
+
+/**
+ * The side-effect free parts of event handling: CloudEvent header validation and the mapping of a
+ * Vision response to an AnalysisResult, through the analysis-core mapping the Cloud Function uses
+ * too. Kept apart from EventController so the benchmarks under src/jmh can drive them without
+ * Spring, Vision or Firestore.
+ */
+final class EventMapping {
+
+  private EventMapping() {
+  }
+
+  /** Returns the error message for the first missing CloudEvent header, or null if all are present. */
+  static String validateHeaders(String ceId, String ceSource, String ceType, String ceSpecversion,
+      String ceSubject) {
+    if (ceId == null) {
+      return "Missing expected header: ce-id.";
+    }
+    if (ceSource == null) {
+      return "Missing expected header: ce-source.";
+    }
+    if (ceType == null) {
+      return "Missing expected header: ce-type.";
+    }
+    if (ceSpecversion == null) {
+      return "Missing expected header: ce-specversion.";
+    }
+    if (ceSubject == null) {
+      return "Missing expected header: ce-subject.";
+    }
+    return null;
+  }
+
+  /**
+   * The result EventController stores for a Vision response. mainColor comes from the response or,
+   * with local colour extraction, from the picture itself.
+   */
+  static AnalysisResult toResult(AnnotateImageResponse response, String mainColor) {
+    return new AnalysisResult(ImageAnnotations.labels(response), mainColor, ImageAnnotations.isSafe(response));
+  }
+}
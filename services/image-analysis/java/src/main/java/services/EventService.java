@@ -2,22 +2,47 @@ package services;
 
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QuerySnapshot;
 import com.google.cloud.firestore.SetOptions;
 import com.google.cloud.firestore.WriteResult;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import org.springframework.beans.factory.annotation.Autowired;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import analysis.CachedAnnotations;
+import analysis.ImageAnnotations;
+
 @Service
 public class EventService {
+  private static final Logger logger = LoggerFactory.getLogger(EventService.class);
+
+  // "bulk" coalesces writes through a Firestore BulkWriter, "direct" sends one set() per picture
+  @Value("${firestore.write-mode:bulk}")
+  private String writeMode;
+
+  @Value("${firestore.bulk.flush-interval-ms:25}")
+  private long flushIntervalMillis;
+
+  @Value("${firestore.bulk.max-attempts:5}")
+  private int maxAttempts;
+
+  @Value("${firestore.bulk.initial-ops-per-second:500}")
+  private int initialOpsPerSecond;
 
   private final FirestoreOptions firestoreOptions;
-  private final Firestore firestore;
+  private volatile Firestore firestore;
+  private volatile PictureBulkWriter bulkWriter;
 
   public EventService() {
     this.firestoreOptions = FirestoreOptions.getDefaultInstance();
@@ -27,16 +52,162 @@ public class EventService {
     this.firestoreOptions = firestoreOptions;
     this.firestore = firestore;
   }
+  EventService(FirestoreOptions firestoreOptions, Firestore firestore, PictureBulkWriter bulkWriter) {
+    this(firestoreOptions, firestore);
+    this.bulkWriter = bulkWriter;
+  }
+
+  @PostConstruct
+  public void init() {
+    openBulkWriter();
+  }
+
+  private void openBulkWriter() {
+    if (bulkWriter == null && "bulk".equalsIgnoreCase(writeMode)) {
+      bulkWriter = new PictureBulkWriter(firestore, flushIntervalMillis, maxAttempts, initialOpsPerSecond);
+      logger.info("EventService: picture metadata is written through a BulkWriter, flushed every {} ms",
+          flushIntervalMillis);
+    }
+  }
 
   public ApiFuture<WriteResult> storeImage(String fileName, List<String> labels, String mainColor) {
-    DocumentReference doc = firestore.collection("pictures").document(fileName);
+    DocumentReference doc = firestore.collection(ImageAnnotations.PICTURES_COLLECTION).document(fileName);
+    return storePicture(doc, ImageAnnotations.pictureData(labels, mainColor));
+  }
+
+  /**
+   * Stores re-analysed picture metadata. created is set to the object's creation time rather than
+   * now, so a backfill does not reorder the pictures; when it is null the stored value is kept.
+   */
+  public ApiFuture<WriteResult> storeBackfilledImage(String fileName, List<String> labels, String mainColor,
+      Date created) {
+    DocumentReference doc = firestore.collection(ImageAnnotations.PICTURES_COLLECTION).document(fileName);
+    Map<String, Object> data = ImageAnnotations.pictureData(labels, mainColor);
+    if (created != null) {
+      data.put("created", created);
+    } else {
+      data.remove("created");
+    }
+    return storePicture(doc, data);
+  }
+
+  private ApiFuture<WriteResult> storePicture(DocumentReference doc, Map<String, Object> data) {
+    PictureBulkWriter writer = bulkWriter;
+    if (writer != null) {
+      ApiFuture<WriteResult> result = writer.set(doc, data, SetOptions.merge());
+      if (result != null) {
+        return result;
+      }
+      // the writer was closed by a concurrent flush(); this write goes directly instead
+    }
+    return doc.set(data, SetOptions.merge());
+  }
+
+  public ApiFuture<DocumentSnapshot> findProcessedEvent(String eventId) {
+    return firestore.collection("processedEvents").document(eventId).get();
+  }
 
+  // expireAt can back a Firestore TTL policy on the processedEvents collection
+  public ApiFuture<WriteResult> markEventProcessed(String eventId, Date expireAt) {
     Map<String, Object> data = new HashMap<>();
-    data.put("labels", labels);
-    data.put("color", mainColor);
+    data.put("processed", new Date());
+    data.put("expireAt", expireAt);
+
+    return firestore.collection("processedEvents").document(eventId).set(data);
+  }
+
+  public ApiFuture<DocumentSnapshot> findCachedAnnotation(String contentKey) {
+    return annotationCacheDocument(contentKey).get();
+  }
+
+  public ApiFuture<WriteResult> storeCachedAnnotation(String contentKey, AnalysisResult result) {
+    Map<String, Object> data = CachedAnnotations.documentData(
+        new CachedAnnotations.Entry(result.labels(), result.mainColor(), result.safe()));
+    return annotationCacheDocument(contentKey).set(data);
+  }
+
+  /** One page of perceptual hashes, newest first, after the last document of the previous page. */
+  public ApiFuture<QuerySnapshot> findPerceptualHashes(int limit, DocumentSnapshot after) {
+    Query query = firestore.collection("perceptualHashes")
+        .orderBy("created", Query.Direction.DESCENDING)
+        .limit(limit);
+    return (after != null ? query.startAfter(after) : query).get();
+  }
+
+  public ApiFuture<WriteResult> storePerceptualHash(long hash, AnalysisResult result) {
+    Map<String, Object> data = new HashMap<>();
+    data.put("hash", hash);
+    data.put("labels", result.labels());
+    data.put("color", result.mainColor());
+    data.put("safe", result.safe());
     data.put("created", new Date());
 
-    return doc.set(data, SetOptions.merge());
+    return firestore.collection("perceptualHashes").document(Long.toHexString(hash)).set(data);
+  }
+
+  public ApiFuture<DocumentSnapshot> findBackfillCheckpoint(String jobId) {
+    return firestore.collection("backfillCheckpoints").document(jobId).get();
+  }
+
+  /** Records how a backfill job splits its bucket, so a resumed run can check it splits it the same way. */
+  public ApiFuture<WriteResult> storeBackfillLayout(String jobId, String prefix, List<String> splitPoints) {
+    Map<String, Object> data = new HashMap<>();
+    data.put("prefix", prefix);
+    data.put("splitPoints", splitPoints);
+    data.put("updated", new Date());
+
+    return firestore.collection("backfillCheckpoints").document(jobId).set(data, SetOptions.merge());
+  }
+
+  /**
+   * Records that a backfill partition is processed up to and including lastName, except for
+   * failedNames, which Vision could not annotate and the next run retries.
+   */
+  public ApiFuture<WriteResult> storeBackfillCheckpoint(String jobId, int partition, String lastName,
+      boolean done, List<String> failedNames) {
+    Map<String, Object> progress = new HashMap<>();
+    progress.put("after", lastName);
+    progress.put("done", done);
+    progress.put("failed", failedNames);
+    Map<String, Object> data = new HashMap<>();
+    data.put("partitions", Map.of(String.valueOf(partition), progress));
+    data.put("updated", new Date());
+
+    // merge keeps the other partitions' entries
+    return firestore.collection("backfillCheckpoints").document(jobId).set(data, SetOptions.merge());
+  }
+
+  private DocumentReference annotationCacheDocument(String contentKey) {
+    return firestore.collection(CachedAnnotations.COLLECTION).document(CachedAnnotations.documentId(contentKey));
+  }
+
+  /** Flushes buffered writes and waits for them; called on shutdown. Later writes go directly. */
+  public synchronized void flush() {
+    PictureBulkWriter writer = bulkWriter;
+    if (writer == null) {
+      return;
+    }
+    // stop handing out the writer before it is closed
+    bulkWriter = null;
+    try {
+      writer.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      logger.error("EventService: pending picture metadata writes failed on shutdown", e.getCause());
+    }
+  }
+
+  /** Flushes pending writes and closes the Firestore channels, e.g. before a CRaC checkpoint. */
+  public synchronized void close() throws Exception {
+    flush();
+    firestore.close();
+  }
+
+  /** Opens a new Firestore client after close(); FirestoreOptions.getService() would return the closed one. */
+  public synchronized void reopen() {
+    firestore = firestoreOptions.toBuilder().build().getService();
+    openBulkWriter();
   }
 
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.concurrent.CompletionException;
+
+import org.springframework.http.ResponseEntity;
+
+import com.google.api.gax.rpc.ApiException;
+
+/** Outcome of one event of a batch, with the HTTP status it would have got on its own. */
+record EventStatus(String id, int status, String message) {
+
+  static EventStatus of(String id, ResponseEntity<String> response, Throwable failure) {
+    if (failure != null) {
+      // exception messages can name projects and documents, so the caller only gets the status code;
+      // the exception itself is logged by the controller
+      return new EventStatus(id, 500, failureMessage(failure));
+    }
+    return new EventStatus(id, response.getStatusCode().value(), response.getBody());
+  }
+
+  static String failureMessage(Throwable failure) {
+    Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+        ? failure.getCause() : failure;
+    if (cause instanceof ApiException apiException) {
+      return "Internal error: " + apiException.getStatusCode().getCode();
+    }
+    return "Internal error";
+  }
+}
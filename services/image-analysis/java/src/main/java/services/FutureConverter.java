@@ -0,0 +1,49 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Bridges the ApiFutures returned by the Google Cloud clients into CompletableFutures, without
+ * parking a thread on get().
+ */
+final class FutureConverter {
+
+  private FutureConverter() {
+  }
+
+  static <T> CompletableFuture<T> toCompletableFuture(ApiFuture<T> apiFuture) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    ApiFutures.addCallback(apiFuture, new ApiFutureCallback<T>() {
+      @Override
+      public void onSuccess(T result) {
+        future.complete(result);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        future.completeExceptionally(t);
+      }
+    }, MoreExecutors.directExecutor());
+    return future;
+  }
+}
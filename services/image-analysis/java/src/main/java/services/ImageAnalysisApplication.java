@@ -22,6 +22,7 @@ import java.text.SimpleDateFormat;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import javax.annotation.PreDestroy;
 
@@ -29,6 +30,15 @@ import javax.annotation.PreDestroy;
 public class ImageAnalysisApplication {
 	private static final Logger logger = LoggerFactory.getLogger(ImageAnalysisApplication.class);
 
+	@Autowired
+	private VisionBatcher visionBatcher;
+
+	@Autowired
+	private VisionClientProvider visionClientProvider;
+
+	@Autowired
+	private EventService eventService;
+
 	public static void main(String[] args) {
 		logger.info("ImageAnalysisApplication: Active processors: " + Runtime.getRuntime().availableProcessors()); 
 		logger.info("ImageAnalysisApplication app started : " + 
@@ -42,5 +52,8 @@ public class ImageAnalysisApplication {
 	@PreDestroy
 	public void shutDown(){
 		logger.info(ImageAnalysisApplication.class.getSimpleName() + ": received SIGTERM ==> Shutting down resources !");
+		visionBatcher.shutdown();
+		visionClientProvider.shutdown();
+		eventService.flush();
 	}	
 }
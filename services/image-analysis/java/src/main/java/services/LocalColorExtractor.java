@@ -0,0 +1,100 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import analysis.DominantColors;
+import analysis.ImageAnnotations;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Computes the main colour in process when local-color.enabled is set, so the Vision request can
+ * leave out IMAGE_PROPERTIES. The picture is downloaded while Vision works on labels and safe
+ * search, and only a subsampled copy of it is decoded.
+ *
+ * A failed download or decode never fails the event: the colour falls back to the default.
+ */
+@Component
+public class LocalColorExtractor {
+  private static final Logger logger = LoggerFactory.getLogger(LocalColorExtractor.class);
+
+  @Value("${local-color.enabled:false}")
+  private boolean enabled;
+
+  // longest edge, in pixels, of the subsampled image the histogram is built from
+  @Value("${local-color.sample-size:128}")
+  private int sampleSize;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private Timer extractionTimer;
+  private Counter failures;
+
+  @PostConstruct
+  public void init() {
+    extractionTimer = Timer.builder("analysis.stage.duration")
+        .description("Time spent in one stage of event handling")
+        .tag("stage", "local-color")
+        .register(meterRegistry);
+    failures = Counter.builder("analysis.local-color.failures")
+        .description("Pictures whose colour could not be computed locally and fell back to the default")
+        .register(meterRegistry);
+    if (enabled) {
+      logger.info("LocalColorExtractor: main colour computed locally from a {} px sample", sampleSize);
+    }
+  }
+
+  public boolean enabled() {
+    return enabled;
+  }
+
+  /** Completes with the main colour of the downloaded picture, or the default colour if it cannot be read. */
+  public CompletableFuture<String> mainColor(String fileName, CompletableFuture<byte[]> picture) {
+    Timer.Sample extraction = Timer.start(meterRegistry);
+    return picture
+        .thenApply(bytes -> {
+          try {
+            return DominantColors.mainColor(bytes, sampleSize);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        })
+        .handle((color, t) -> {
+          extraction.stop(extractionTimer);
+          if (t != null) {
+            logger.warn("LocalColorExtractor: no colour for {}, using the default", fileName, t);
+            failures.increment();
+            return ImageAnnotations.DEFAULT_COLOR;
+          }
+          return color;
+        });
+  }
+}
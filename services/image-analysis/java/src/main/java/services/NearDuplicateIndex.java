@@ -0,0 +1,293 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+
+import analysis.BkTree;
+import analysis.PerceptualHash;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Finds earlier pictures that look the same as a new upload, so re-encoded, resized or slightly
+ * cropped copies reuse the labels, colour and safety verdict of the original instead of going to
+ * Vision. Pictures are compared by 64-bit dHash in a BK-tree held in memory.
+ *
+ * The most recent warm-entries hashes are loaded from the perceptualHashes Firestore collection
+ * at startup, page by page in the background; until they are loaded, lookups simply miss. They
+ * are older than anything added meanwhile, so they are merged in front of it. Every picture Vision
+ * analyses is added and persisted there, so other instances pick it up on their next start.
+ *
+ * The index holds at most max-entries hashes. When it is full, the older half is dropped and the
+ * tree is rebuilt from the newer half, so a long-running instance keeps a bounded heap.
+ */
+@Component
+public class NearDuplicateIndex {
+  private static final Logger logger = LoggerFactory.getLogger(NearDuplicateIndex.class);
+
+  @Value("${near-duplicate.enabled:false}")
+  private boolean enabled;
+
+  // most differing bits for two pictures to count as the same
+  @Value("${near-duplicate.max-distance:8}")
+  private int maxDistance;
+
+  // most recent hashes kept in memory, at startup and while running
+  @Value("${near-duplicate.max-entries:200000}")
+  private int maxEntries;
+
+  // most recent hashes loaded at startup, at most max-entries
+  @Value("${near-duplicate.warm-entries:20000}")
+  private int warmEntries;
+
+  @Value("${near-duplicate.load-page-size:1000}")
+  private int loadPageSize;
+
+  @Autowired
+  private EventService eventService;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  // guarded by lock; tree values index into results and hashes, oldest first
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private BkTree tree = new BkTree();
+  private List<AnalysisResult> results = new ArrayList<>();
+  private long[] hashes = new long[16];
+
+  private Timer hashTimer;
+  private Counter hits;
+  private Counter misses;
+
+  @PostConstruct
+  public void init() {
+    hashTimer = Timer.builder("analysis.stage.duration")
+        .description("Time spent in one stage of event handling")
+        .tag("stage", "perceptual-hash")
+        .register(meterRegistry);
+    hits = Counter.builder("analysis.near-duplicate.lookups")
+        .tag("result", "hit")
+        .register(meterRegistry);
+    misses = Counter.builder("analysis.near-duplicate.lookups")
+        .tag("result", "miss")
+        .register(meterRegistry);
+    meterRegistry.gauge("analysis.near-duplicate.size", this, index -> index.size());
+    if (enabled) {
+      load();
+    }
+  }
+
+  public boolean enabled() {
+    return enabled;
+  }
+
+  /** Completes with the hash of the downloaded picture, or null if it could not be decoded. */
+  public CompletableFuture<Long> fingerprint(String fileName, CompletableFuture<byte[]> picture) {
+    Timer.Sample hashing = Timer.start(meterRegistry);
+    return picture
+        .thenApply(bytes -> {
+          try {
+            return PerceptualHash.dHash(bytes);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        })
+        .handle((hash, t) -> {
+          hashing.stop(hashTimer);
+          if (t != null) {
+            logger.warn("NearDuplicateIndex: could not hash {}, analysing it with Vision", fileName, t);
+            return null;
+          }
+          return hash;
+        });
+  }
+
+  /** Returns the result of the closest earlier picture within max-distance, or null. */
+  public AnalysisResult find(long hash) {
+    AnalysisResult match = null;
+    lock.readLock().lock();
+    try {
+      int index = tree.nearest(hash, maxDistance);
+      if (index >= 0) {
+        match = results.get(index);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    (match != null ? hits : misses).increment();
+    return match;
+  }
+
+  public void add(long hash, AnalysisResult result) {
+    addInMemory(hash, result);
+    FutureConverter.toCompletableFuture(eventService.storePerceptualHash(hash, result))
+        .exceptionally(t -> {
+          logger.warn("NearDuplicateIndex: could not persist hash {}", Long.toHexString(hash), t);
+          return null;
+        });
+  }
+
+  int size() {
+    lock.readLock().lock();
+    try {
+      return tree.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void addInMemory(long hash, AnalysisResult result) {
+    lock.writeLock().lock();
+    try {
+      if (results.size() >= Math.max(1, maxEntries)) {
+        dropOlderHalf();
+      }
+      int index = results.size();
+      if (index == hashes.length) {
+        hashes = Arrays.copyOf(hashes, index * 2);
+      }
+      hashes[index] = hash;
+      results.add(result);
+      tree.add(hash, index);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // a BK-tree cannot delete, so the kept entries go into a new tree; must hold the write lock
+  private void dropOlderHalf() {
+    int from = results.size() - maxEntries / 2;
+    List<AnalysisResult> kept = new ArrayList<>(results.subList(from, results.size()));
+    long[] keptHashes = Arrays.copyOf(Arrays.copyOfRange(hashes, from, results.size()), Math.max(16, hashes.length));
+    BkTree rebuilt = new BkTree();
+    for (int i = 0; i < kept.size(); i++) {
+      rebuilt.add(keptHashes[i], i);
+    }
+    logger.info("NearDuplicateIndex: reached {} entries, dropped the oldest {}", results.size(), from);
+    results = kept;
+    hashes = keptHashes;
+    tree = rebuilt;
+  }
+
+  private void load() {
+    long start = System.nanoTime();
+    List<QueryDocumentSnapshot> documents = new ArrayList<>();
+    loadPage(null, Math.min(warmEntries, maxEntries), documents)
+        .whenComplete((ignored, t) -> {
+          if (t != null) {
+            logger.warn("NearDuplicateIndex: could not load all hashes, keeping the {} read", documents.size(), t);
+          }
+          int loaded = merge(documents);
+          logger.info("NearDuplicateIndex: loaded {} hashes in {} ms", loaded, (System.nanoTime() - start) / 1_000_000);
+        });
+  }
+
+  // reads pages newest first into documents until it holds wanted of them or the collection ends
+  private CompletableFuture<Void> loadPage(DocumentSnapshot after, int wanted, List<QueryDocumentSnapshot> documents) {
+    int limit = Math.min(Math.max(1, loadPageSize), wanted - documents.size());
+    if (limit <= 0) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return FutureConverter.toCompletableFuture(eventService.findPerceptualHashes(limit, after))
+        .thenCompose(snapshot -> {
+          List<QueryDocumentSnapshot> page = snapshot.getDocuments();
+          documents.addAll(page);
+          if (page.size() < limit) {
+            return CompletableFuture.completedFuture(null);
+          }
+          return loadPage(page.get(page.size() - 1), wanted, documents);
+        });
+  }
+
+  /**
+   * Puts the loaded documents, newest first, in front of the entries added since startup, which
+   * are newer. Hashes already in the index are skipped, and only as many are kept as fit under
+   * max-entries. Returns the number merged.
+   */
+  @SuppressWarnings("unchecked")
+  int merge(List<QueryDocumentSnapshot> documents) {
+    lock.writeLock().lock();
+    try {
+      int added = results.size();
+      Set<Long> present = new HashSet<>();
+      for (int i = 0; i < added; i++) {
+        present.add(hashes[i]);
+      }
+      int room = Math.max(1, maxEntries) - added;
+      List<Long> loadedHashes = new ArrayList<>();
+      List<AnalysisResult> loadedResults = new ArrayList<>();
+      for (QueryDocumentSnapshot document : documents) {
+        if (loadedResults.size() >= room) {
+          break;
+        }
+        Long hash = document.getLong("hash");
+        List<String> labels = (List<String>) document.get("labels");
+        String color = document.getString("color");
+        Boolean safe = document.getBoolean("safe");
+        if (hash == null || labels == null || color == null || safe == null || !present.add(hash)) {
+          continue;
+        }
+        loadedHashes.add(hash);
+        loadedResults.add(new AnalysisResult(labels, color, safe));
+      }
+
+      // oldest first: the loaded entries reversed, then the ones added since startup
+      int size = loadedResults.size() + added;
+      List<AnalysisResult> merged = new ArrayList<>(size);
+      long[] mergedHashes = new long[Math.max(16, size)];
+      BkTree rebuilt = new BkTree();
+      for (int i = loadedResults.size() - 1; i >= 0; i--) {
+        mergedHashes[merged.size()] = loadedHashes.get(i);
+        rebuilt.add(loadedHashes.get(i), merged.size());
+        merged.add(loadedResults.get(i));
+      }
+      for (int i = 0; i < added; i++) {
+        mergedHashes[merged.size()] = hashes[i];
+        rebuilt.add(hashes[i], merged.size());
+        merged.add(results.get(i));
+      }
+      results = merged;
+      hashes = mergedHashes;
+      tree = rebuilt;
+      return loadedResults.size();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+}
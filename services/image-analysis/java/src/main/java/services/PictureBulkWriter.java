@@ -0,0 +1,110 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.BulkWriterOptions;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteResult;
+
+import io.grpc.Status;
+
+/**
+ * Coalesces picture metadata writes from concurrent events into Firestore BulkWriter batches.
+ *
+ * BulkWriter sends a batch on its own once it is full; this class adds a time-based flush so a
+ * lone write never waits longer than the flush interval. Each write keeps its own future and is
+ * retried on its own, with BulkWriter's backoff, while its error is transient and it has attempts left.
+ */
+class PictureBulkWriter implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(PictureBulkWriter.class);
+
+  private static final Set<Status.Code> RETRYABLE_CODES = EnumSet.of(
+      Status.Code.ABORTED, Status.Code.DEADLINE_EXCEEDED, Status.Code.INTERNAL,
+      Status.Code.RESOURCE_EXHAUSTED, Status.Code.UNAVAILABLE);
+
+  private final BulkWriter bulkWriter;
+  private final long flushIntervalMillis;
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private boolean closed;
+  private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "firestore-bulk-flush");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * @param initialOpsPerSecond starting rate for BulkWriter's ramp-up throttling, or 0 to disable throttling
+   */
+  PictureBulkWriter(Firestore firestore, long flushIntervalMillis, int maxAttempts, int initialOpsPerSecond) {
+    BulkWriterOptions options = initialOpsPerSecond > 0
+        ? BulkWriterOptions.builder().setInitialOpsPerSecond(initialOpsPerSecond).build()
+        : BulkWriterOptions.builder().setThrottlingEnabled(false).build();
+
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.bulkWriter = firestore.bulkWriter(options);
+    this.bulkWriter.addWriteErrorListener(error -> {
+      boolean retry = error.getFailedAttempts() < maxAttempts
+          && RETRYABLE_CODES.contains(error.getStatus().getCode());
+      logger.warn("PictureBulkWriter: write to {} failed on attempt {} with {}{}",
+          error.getDocumentReference().getPath(), error.getFailedAttempts(), error.getStatus().getCode(),
+          retry ? ", retrying" : "");
+      return retry;
+    });
+  }
+
+  /** Returns null once the writer is closed; the caller then writes the document directly. */
+  synchronized ApiFuture<WriteResult> set(DocumentReference doc, Map<String, Object> data, SetOptions options) {
+    if (closed) {
+      return null;
+    }
+    ApiFuture<WriteResult> result = bulkWriter.set(doc, data, options);
+    if (flushScheduled.compareAndSet(false, true)) {
+      flusher.schedule(this::flush, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    return result;
+  }
+
+  private synchronized void flush() {
+    flushScheduled.set(false);
+    if (!closed) {
+      bulkWriter.flush();
+    }
+  }
+
+  /** Sends everything still buffered and waits until every pending write has settled. */
+  @Override
+  public synchronized void close() throws InterruptedException, ExecutionException {
+    closed = true;
+    flusher.shutdownNow();
+    bulkWriter.close();
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+
+/**
+ * Downloads uploaded pictures for the stages that look at the pixels themselves (local colour and
+ * near-duplicate detection), on a small dedicated pool so the blocking reads stay off the request
+ * and Vision threads. The callers decode on the same pool.
+ */
+@Component
+public class PictureBytes {
+
+  @Value("${picture-download.parallelism:4}")
+  private int parallelism;
+
+  private volatile Storage storage;
+  private ExecutorService executor;
+
+  public CompletableFuture<byte[]> fetch(String bucketName, String fileName) {
+    return CompletableFuture.supplyAsync(() -> storage().readAllBytes(BlobId.of(bucketName, fileName)), executor());
+  }
+
+  private synchronized ExecutorService executor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+        Thread thread = new Thread(runnable, "picture-download");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return executor;
+  }
+
+  private Storage storage() {
+    Storage current = storage;
+    if (current == null) {
+      synchronized (this) {
+        current = storage;
+        if (current == null) {
+          current = StorageOptions.getDefaultInstance().getService();
+          storage = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  @PreDestroy
+  public synchronized void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+}
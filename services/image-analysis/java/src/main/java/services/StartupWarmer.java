@@ -0,0 +1,206 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.crac.CheckpointException;
+import org.crac.Core;
+import org.crac.RestoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.gax.rpc.ApiException;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesRequest;
+import com.google.cloud.vision.v1.ColorInfo;
+import com.google.cloud.vision.v1.DominantColorsAnnotation;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.cloud.vision.v1.ImageProperties;
+import com.google.cloud.vision.v1.SafeSearchAnnotation;
+import com.google.type.Color;
+
+import analysis.DominantColors;
+import analysis.ImageAnnotations;
+import services.actuator.StartupCheck;
+
+/**
+ * Primes the instance before the startup probe reports it ready: opens the Vision channels and
+ * authenticates with an empty batch request, reads one Firestore document, and runs the JSON
+ * binding and response mapping once so their classes are loaded. The time taken by each step is
+ * reported by the startup actuator endpoint.
+ *
+ * A failed step is recorded and does not keep the instance from becoming ready; the first event
+ * then pays that cost as before.
+ */
+@Component
+public class StartupWarmer {
+  private static final Logger logger = LoggerFactory.getLogger(StartupWarmer.class);
+
+  private static final String SAMPLE_EVENT = "{\"name\":\"warmup.jpeg\",\"bucket\":\"warmup\","
+      + "\"md5Hash\":\"1B2M2Y8AsgTpgAmY7PhCfg==\",\"crc32c\":\"AAAAAA==\",\"size\":\"0\",\"kind\":\"storage#object\"}";
+
+  @Value("${warmup.enabled:true}")
+  private boolean enabled;
+
+  @Value("${warmup.step-timeout-seconds:10}")
+  private long stepTimeoutSeconds;
+
+  // take a CRaC checkpoint once warm, see the crac profile
+  @Value("${warmup.checkpoint:false}")
+  private boolean checkpoint;
+
+  @Autowired
+  private VisionClientProvider visionClientProvider;
+
+  @Autowired
+  private EventService eventService;
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  @Autowired
+  private LocalColorExtractor localColorExtractor;
+
+  @Autowired
+  private ApplicationContext context;
+
+  private interface Step {
+    String run() throws Exception;
+  }
+
+  // runs off the main thread so the server starts listening while the clients warm up
+  @EventListener(ApplicationReadyEvent.class)
+  public void warmUp() {
+    if (!enabled) {
+      StartupCheck.up();
+      return;
+    }
+    Thread thread = new Thread(this::runSteps, "startup-warmer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void runSteps() {
+    Map<String, Object> timings = new LinkedHashMap<>();
+    long start = System.nanoTime();
+    step(timings, "vision", this::warmVision);
+    step(timings, "firestore", this::warmFirestore);
+    step(timings, "jackson", this::warmJackson);
+    step(timings, "protobuf", this::warmProtobuf);
+    if (localColorExtractor.enabled()) {
+      step(timings, "local-color", this::warmLocalColor);
+    }
+    timings.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+    if (checkpoint) {
+      checkpoint(timings);
+    }
+
+    StartupCheck.warmup(timings);
+    StartupCheck.up();
+    logger.info("StartupWarmer: ready after warm-up {}", timings);
+  }
+
+  // with -XX:CRaCCheckpointTo the JVM saves its state here and exits; a restored JVM continues below
+  private void checkpoint(Map<String, Object> timings) {
+    try {
+      Core.checkpointRestore();
+      timings.put("checkpoint", "restored");
+    } catch (CheckpointException | RestoreException | UnsupportedOperationException e) {
+      // the clients were closed for the checkpoint, and crac/checkpoint.sh waits for the JVM to exit
+      logger.error("StartupWarmer: checkpoint after warm-up failed, exiting", e);
+      System.exit(SpringApplication.exit(context, () -> 1));
+    }
+  }
+
+  private void step(Map<String, Object> timings, String name, Step step) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    long start = System.nanoTime();
+    try {
+      result.put("result", step.run());
+    } catch (Exception e) {
+      logger.warn("StartupWarmer: {} warm-up failed", name, e);
+      result.put("result", "failed: " + e);
+    }
+    result.put("millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    timings.put(name, result);
+  }
+
+  // an empty batch is not billed; it still opens the channels, fetches a token and does the TLS handshake
+  private String warmVision() throws Exception {
+    try {
+      visionClientProvider.getClient().batchAnnotateImagesCallable()
+          .futureCall(BatchAnnotateImagesRequest.getDefaultInstance())
+          .get(stepTimeoutSeconds, TimeUnit.SECONDS);
+      return "ok";
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ApiException) {
+        // rejected by the API, which still means the connection is up
+        return "ok (" + ((ApiException) e.getCause()).getStatusCode().getCode() + ")";
+      }
+      throw e;
+    }
+  }
+
+  private String warmFirestore() throws Exception {
+    eventService.findProcessedEvent("startup-warmup").get(stepTimeoutSeconds, TimeUnit.SECONDS);
+    return "ok";
+  }
+
+  private String warmJackson() throws Exception {
+    StorageObjectData data = objectMapper.readValue(SAMPLE_EVENT, StorageObjectData.class);
+    AnnotationCache.key(data.md5Hash(), data.crc32c(), data.size());
+    return "ok";
+  }
+
+  private String warmProtobuf() throws Exception {
+    AnnotateImageResponse response = AnnotateImageResponse.newBuilder()
+        .addLabelAnnotations(EntityAnnotation.newBuilder().setDescription("Warm-up").setScore(1f))
+        .setImagePropertiesAnnotation(ImageProperties.newBuilder()
+            .setDominantColors(DominantColorsAnnotation.newBuilder()
+                .addColors(ColorInfo.newBuilder()
+                    .setColor(Color.newBuilder().setRed(255f).setGreen(255f).setBlue(255f)))))
+        .setSafeSearchAnnotation(SafeSearchAnnotation.getDefaultInstance())
+        .build();
+    AnnotateImageResponse parsed = AnnotateImageResponse.parseFrom(response.toByteString());
+    AnalysisResult result = EventMapping.toResult(parsed, ImageAnnotations.mainColor(parsed));
+    ImageAnnotations.pictureData(result.labels(), result.mainColor());
+    return "ok";
+  }
+
+  // loads the ImageIO JPEG reader, which is slow to initialise on first use
+  private String warmLocalColor() throws Exception {
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB), "jpg", jpeg);
+    return DominantColors.mainColor(jpeg.toByteArray(), 8);
+  }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * A CloudEvent in structured content mode: the attributes the binary mode sends as ce-* headers
+ * are JSON members next to the data. Batches are JSON arrays of these.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+record StructuredCloudEvent(String id, String source, String type, String specversion, String subject,
+    StorageObjectData data) {
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcCallContext;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.threeten.bp.Duration;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Collects single-image Vision requests from concurrent events into batchAnnotateImages calls.
+ *
+ * A batch is sent as soon as it holds vision.batch.max-size requests, or when the oldest request
+ * has waited vision.batch.max-wait-ms. At most vision.batch.max-in-flight batches are outstanding
+ * at once; further batches wait in order until a slot frees up.
+ */
+@Component
+public class VisionBatcher {
+  private static final Logger logger = LoggerFactory.getLogger(VisionBatcher.class);
+
+  // Vision accepts at most 16 images per batchAnnotateImages call
+  static final int MAX_VISION_BATCH_SIZE = 16;
+
+  static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  @Value("${vision.batch.max-size:16}")
+  private int maxBatchSize;
+
+  @Value("${vision.batch.max-wait-ms:20}")
+  private long maxWaitMillis;
+
+  @Value("${vision.batch.max-in-flight:4}")
+  private int maxInFlightBatches;
+
+  @Autowired
+  private VisionClientProvider visionClientProvider;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "vision-batcher");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // guarded by this
+  private List<PendingRequest> pending = new ArrayList<>();
+  private ScheduledFuture<?> lingerTimer;
+  private final Deque<List<PendingRequest>> readyBatches = new ArrayDeque<>();
+  private int inFlightBatches;
+
+  private DistributionSummary batchSize;
+  private Timer queueWait;
+
+  @PostConstruct
+  public void init() {
+    maxBatchSize = Math.max(1, Math.min(maxBatchSize, MAX_VISION_BATCH_SIZE));
+    batchSize = DistributionSummary.builder("analysis.vision.batch.size")
+        .description("Number of images sent per batchAnnotateImages call")
+        .maximumExpectedValue((double) MAX_VISION_BATCH_SIZE)
+        .register(meterRegistry);
+    queueWait = Timer.builder("analysis.vision.batch.queue.wait")
+        .description("Time a request waited in the batcher before its batch was sent")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Queues a request for the next batch. The returned future completes with the matching
+   * response, or with null if Vision returned fewer responses than requests.
+   */
+  public CompletableFuture<AnnotateImageResponse> annotate(AnnotateImageRequest request) {
+    return annotate(request, NO_DEADLINE);
+  }
+
+  /**
+   * Same as annotate(request), with a deadline on the System.nanoTime() clock. A request whose
+   * deadline passed while it was queued fails with a TimeoutException without being sent; once
+   * sent, it fails with a TimeoutException at its deadline while the batch call goes on for the
+   * others, whose latest deadline is the RPC timeout.
+   */
+  public CompletableFuture<AnnotateImageResponse> annotate(AnnotateImageRequest request, long deadlineNanos) {
+    PendingRequest pendingRequest = new PendingRequest(request, deadlineNanos);
+    List<PendingRequest> fullBatch = null;
+
+    synchronized (this) {
+      pending.add(pendingRequest);
+      if (pending.size() >= maxBatchSize) {
+        fullBatch = drain();
+      } else if (pending.size() == 1) {
+        lingerTimer = scheduler.schedule(this::flushOnTimer, maxWaitMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    if (fullBatch != null) {
+      dispatch(fullBatch);
+    }
+    return pendingRequest.future;
+  }
+
+  /** Sends whatever is queued right away and stops the linger timer thread. */
+  public void shutdown() {
+    List<PendingRequest> batch;
+    synchronized (this) {
+      batch = pending.isEmpty() ? null : drain();
+    }
+    if (batch != null) {
+      logger.info("VisionBatcher: flushing {} queued request(s) on shutdown", batch.size());
+      dispatch(batch);
+    }
+    scheduler.shutdown();
+  }
+
+  // must hold the lock
+  private List<PendingRequest> drain() {
+    if (lingerTimer != null) {
+      lingerTimer.cancel(false);
+      lingerTimer = null;
+    }
+    List<PendingRequest> batch = pending;
+    pending = new ArrayList<>(maxBatchSize);
+    return batch;
+  }
+
+  private void flushOnTimer() {
+    List<PendingRequest> batch;
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = drain();
+    }
+    dispatch(batch);
+  }
+
+  private void dispatch(List<PendingRequest> batch) {
+    synchronized (this) {
+      if (inFlightBatches >= maxInFlightBatches) {
+        readyBatches.add(batch);
+        return;
+      }
+      inFlightBatches++;
+    }
+    send(batch);
+  }
+
+  private void onBatchDone() {
+    List<PendingRequest> next;
+    synchronized (this) {
+      next = readyBatches.poll();
+      if (next == null) {
+        inFlightBatches--;
+        return;
+      }
+    }
+    send(next);
+  }
+
+  private void send(List<PendingRequest> pendingBatch) {
+    long now = System.nanoTime();
+    List<PendingRequest> batch = new ArrayList<>(pendingBatch.size());
+    long longestRemaining = 0;
+    for (PendingRequest pendingRequest : pendingBatch) {
+      queueWait.record(now - pendingRequest.enqueuedNanos, TimeUnit.NANOSECONDS);
+      long remaining = pendingRequest.deadlineNanos == NO_DEADLINE
+          ? Long.MAX_VALUE : pendingRequest.deadlineNanos - now;
+      if (remaining <= 0) {
+        pendingRequest.future.completeExceptionally(
+            new TimeoutException("Vision request deadline passed while it was queued"));
+      } else if (!pendingRequest.future.isDone()) {
+        batch.add(pendingRequest);
+        longestRemaining = Math.max(longestRemaining, remaining);
+        if (remaining != Long.MAX_VALUE) {
+          // the request's own deadline, without cutting the call short for its batch-mates
+          pendingRequest.future.orTimeout(remaining, TimeUnit.NANOSECONDS);
+        }
+      }
+    }
+    if (batch.isEmpty()) {
+      onBatchDone();
+      return;
+    }
+
+    BatchAnnotateImagesRequest.Builder batchRequest = BatchAnnotateImagesRequest.newBuilder();
+    for (PendingRequest pendingRequest : batch) {
+      batchRequest.addRequests(pendingRequest.request);
+    }
+    batchSize.record(batch.size());
+
+    ApiCallContext context = GrpcCallContext.createDefault();
+    if (longestRemaining != Long.MAX_VALUE) {
+      context = context.withTimeout(Duration.ofNanos(longestRemaining));
+    }
+
+    ApiFuture<BatchAnnotateImagesResponse> call;
+    try {
+      call = visionClientProvider.getClient().batchAnnotateImagesCallable()
+          .futureCall(batchRequest.build(), context);
+    } catch (Exception e) {
+      failAll(batch, e);
+      onBatchDone();
+      return;
+    }
+
+    ApiFutures.addCallback(call, new ApiFutureCallback<BatchAnnotateImagesResponse>() {
+      @Override
+      public void onSuccess(BatchAnnotateImagesResponse result) {
+        List<AnnotateImageResponse> responses = result.getResponsesList();
+        for (int i = 0; i < batch.size(); i++) {
+          batch.get(i).future.complete(i < responses.size() ? responses.get(i) : null);
+        }
+        onBatchDone();
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        failAll(batch, t);
+        onBatchDone();
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  private static void failAll(List<PendingRequest> batch, Throwable t) {
+    for (PendingRequest pendingRequest : batch) {
+      pendingRequest.future.completeExceptionally(t);
+    }
+  }
+
+  private static final class PendingRequest {
+    final AnnotateImageRequest request;
+    final long deadlineNanos;
+    final long enqueuedNanos = System.nanoTime();
+    final CompletableFuture<AnnotateImageResponse> future = new CompletableFuture<>();
+
+    PendingRequest(AnnotateImageRequest request, long deadlineNanos) {
+      this.request = request;
+      this.deadlineNanos = deadlineNanos;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.threeten.bp.Duration;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.ChannelPoolSettings;
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.cloud.vision.v1.ImageAnnotatorSettings;
+
+/**
+ * Holds the single, long-lived Vision client used by the service.
+ *
+ * The client is created on first use and sits on top of a pool of gRPC channels,
+ * so channel setup, TLS and credential loading are paid once per instance instead
+ * of once per event. The pool grows and shrinks between the configured bounds based
+ * on the number of outstanding RPCs per channel.
+ */
+@Component
+public class VisionClientProvider {
+  private static final Logger logger = LoggerFactory.getLogger(VisionClientProvider.class);
+
+  // Vision endpoint override, e.g. a local fake server; empty means the default endpoint
+  @Value("${vision.endpoint:}")
+  private String endpoint;
+
+  @Value("${vision.plaintext:false}")
+  private boolean plaintext;
+
+  @Value("${vision.channel-pool.initial-channels:2}")
+  private int initialChannels;
+
+  @Value("${vision.channel-pool.min-channels:1}")
+  private int minChannels;
+
+  @Value("${vision.channel-pool.max-channels:8}")
+  private int maxChannels;
+
+  @Value("${vision.channel-pool.min-rpcs-per-channel:0}")
+  private int minRpcsPerChannel;
+
+  @Value("${vision.channel-pool.max-rpcs-per-channel:50}")
+  private int maxRpcsPerChannel;
+
+  @Value("${vision.keep-alive.time-seconds:60}")
+  private long keepAliveTimeSeconds;
+
+  @Value("${vision.keep-alive.timeout-seconds:20}")
+  private long keepAliveTimeoutSeconds;
+
+  @Value("${vision.shutdown-timeout-seconds:10}")
+  private long shutdownTimeoutSeconds;
+
+  private volatile ImageAnnotatorClient client;
+
+  public ImageAnnotatorClient getClient() throws IOException {
+    ImageAnnotatorClient current = client;
+    if (current == null) {
+      synchronized (this) {
+        current = client;
+        if (current == null) {
+          long start = System.currentTimeMillis();
+          current = ImageAnnotatorClient.create(settings());
+          client = current;
+          logger.info("VisionClientProvider: Vision client created in {} ms with {} initial channel(s)",
+              System.currentTimeMillis() - start, initialChannels);
+        }
+      }
+    }
+    return current;
+  }
+
+  ImageAnnotatorSettings settings() throws IOException {
+    InstantiatingGrpcChannelProvider.Builder channelProvider =
+        ImageAnnotatorSettings.defaultGrpcTransportProviderBuilder()
+            .setChannelPoolSettings(ChannelPoolSettings.builder()
+                .setInitialChannelCount(initialChannels)
+                .setMinChannelCount(minChannels)
+                .setMaxChannelCount(maxChannels)
+                .setMinRpcsPerChannel(minRpcsPerChannel)
+                .setMaxRpcsPerChannel(maxRpcsPerChannel)
+                .build())
+            .setKeepAliveTime(Duration.ofSeconds(keepAliveTimeSeconds))
+            .setKeepAliveTimeout(Duration.ofSeconds(keepAliveTimeoutSeconds))
+            .setKeepAliveWithoutCalls(true);
+
+    ImageAnnotatorSettings.Builder settings = ImageAnnotatorSettings.newBuilder();
+    if (!endpoint.isEmpty()) {
+      channelProvider.setEndpoint(endpoint);
+      settings.setEndpoint(endpoint);
+    }
+    if (plaintext) {
+      channelProvider.setChannelConfigurator(builder -> builder.usePlaintext());
+      settings.setCredentialsProvider(NoCredentialsProvider.create());
+    }
+
+    return settings.setTransportChannelProvider(channelProvider.build()).build();
+  }
+
+  public synchronized void shutdown() {
+    ImageAnnotatorClient current = client;
+    if (current == null) {
+      return;
+    }
+    client = null;
+
+    logger.info("VisionClientProvider: closing Vision client channels");
+    current.shutdown();
+    try {
+      if (!current.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+        logger.warn("VisionClientProvider: in-flight Vision calls did not finish in time, forcing shutdown");
+        current.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      current.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+}
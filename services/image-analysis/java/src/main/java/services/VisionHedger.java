@@ -0,0 +1,226 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Deadline-bound Vision calls with optional hedging, in front of VisionBatcher.
+ *
+ * Every call gets the deadline it is given. With vision.hedge.enabled, a call that has not
+ * answered after the vision.hedge.percentile of recent latencies gets a second, identical request;
+ * whichever succeeds first wins and the other is cancelled, which drops it if it is still queued
+ * in the batcher. Hedges draw from a token bucket refilled by vision.hedge.max-ratio tokens per
+ * call, so they can add at most that fraction of extra Vision requests.
+ */
+@Component
+public class VisionHedger {
+
+  private static final int LATENCY_WINDOW = 256;
+  private static final int MIN_SAMPLES = 20;
+  private static final double MAX_HEDGE_TOKENS = 10;
+
+  @Value("${vision.hedge.enabled:false}")
+  private boolean enabled;
+
+  @Value("${vision.hedge.percentile:0.95}")
+  private double percentile;
+
+  @Value("${vision.hedge.max-ratio:0.05}")
+  private double maxRatio;
+
+  @Autowired
+  private VisionBatcher visionBatcher;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "vision-hedger");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // guarded by this: ring buffer of recent single-call latencies, and the hedge token bucket
+  private final long[] latencies = new long[LATENCY_WINDOW];
+  private int latencyCount;
+  private int latencyNext;
+  private long hedgeDelayNanos = -1;
+  private double hedgeTokens;
+
+  private Counter hedgesSent;
+  private Counter hedgesWon;
+  private Counter hedgesCapped;
+  private Counter deadlinesExceeded;
+
+  @PostConstruct
+  public void init() {
+    hedgesSent = Counter.builder("analysis.vision.hedges").tag("result", "sent").register(meterRegistry);
+    hedgesWon = Counter.builder("analysis.vision.hedges").tag("result", "won").register(meterRegistry);
+    hedgesCapped = Counter.builder("analysis.vision.hedges").tag("result", "capped").register(meterRegistry);
+    deadlinesExceeded = Counter.builder("analysis.vision.deadline.exceeded")
+        .description("Vision calls abandoned at the event deadline")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Annotates one image. The future fails with a TimeoutException if no answer arrives before
+   * deadlineNanos, on the System.nanoTime() clock.
+   */
+  public CompletableFuture<AnnotateImageResponse> annotate(AnnotateImageRequest request, long deadlineNanos) {
+    long start = System.nanoTime();
+    long remaining = deadlineNanos - start;
+    if (remaining <= 0) {
+      deadlinesExceeded.increment();
+      return CompletableFuture.failedFuture(new TimeoutException("No time left for the Vision call"));
+    }
+
+    HedgedCall call = new HedgedCall(request, deadlineNanos);
+    call.attempt(false).whenComplete((response, t) -> {
+      if (t == null) {
+        recordLatency(System.nanoTime() - start);
+      }
+    });
+
+    long delay = enabled ? allowHedgeAfter() : -1;
+    if (delay >= 0 && delay < remaining) {
+      ScheduledFuture<?> timer = scheduler.schedule(call::hedge, delay, TimeUnit.NANOSECONDS);
+      call.result.whenComplete((response, t) -> timer.cancel(false));
+    }
+
+    return call.result
+        .orTimeout(remaining, TimeUnit.NANOSECONDS)
+        .whenComplete((response, t) -> {
+          if (t instanceof TimeoutException) {
+            deadlinesExceeded.increment();
+          }
+          call.cancelAttempts();
+        });
+  }
+
+  // returns the hedge delay, or -1 while there are too few samples; also refills the token bucket
+  synchronized long allowHedgeAfter() {
+    hedgeTokens = Math.min(MAX_HEDGE_TOKENS, hedgeTokens + maxRatio);
+    return hedgeDelayNanos;
+  }
+
+  synchronized boolean takeHedgeToken() {
+    if (hedgeTokens < 1) {
+      return false;
+    }
+    hedgeTokens--;
+    return true;
+  }
+
+  synchronized void recordLatency(long nanos) {
+    latencies[latencyNext] = nanos;
+    latencyNext = (latencyNext + 1) % LATENCY_WINDOW;
+    latencyCount = Math.min(latencyCount + 1, LATENCY_WINDOW);
+    // the percentile is recomputed every 16 samples rather than on every call
+    if (latencyCount >= MIN_SAMPLES && latencyNext % 16 == 0) {
+      long[] window = Arrays.copyOf(latencies, latencyCount);
+      Arrays.sort(window);
+      hedgeDelayNanos = window[Math.min(latencyCount - 1, (int) (percentile * latencyCount))];
+    }
+  }
+
+  /** One logical call: the primary attempt and at most one hedge; the first success wins. */
+  private final class HedgedCall {
+    final AnnotateImageRequest request;
+    final long deadlineNanos;
+    final CompletableFuture<AnnotateImageResponse> result = new CompletableFuture<>();
+
+    // guarded by this
+    private final List<CompletableFuture<AnnotateImageResponse>> attempts = new ArrayList<>(2);
+    private int outstanding;
+
+    HedgedCall(AnnotateImageRequest request, long deadlineNanos) {
+      this.request = request;
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    synchronized CompletableFuture<AnnotateImageResponse> attempt(boolean hedge) {
+      CompletableFuture<AnnotateImageResponse> attempt = visionBatcher.annotate(request, deadlineNanos);
+      attempts.add(attempt);
+      outstanding++;
+      attempt.whenComplete((response, t) -> {
+        if (t == null) {
+          if (result.complete(response) && hedge) {
+            hedgesWon.increment();
+          }
+          return;
+        }
+        synchronized (this) {
+          // fail only once no attempt is left that could still succeed
+          if (--outstanding == 0) {
+            result.completeExceptionally(t);
+          }
+        }
+      });
+      return attempt;
+    }
+
+    void hedge() {
+      synchronized (this) {
+        if (result.isDone()) {
+          return;
+        }
+      }
+      if (!takeHedgeToken()) {
+        hedgesCapped.increment();
+        return;
+      }
+      synchronized (this) {
+        if (!result.isDone()) {
+          hedgesSent.increment();
+          attempt(true);
+        }
+      }
+    }
+
+    synchronized void cancelAttempts() {
+      for (CompletableFuture<AnnotateImageResponse> attempt : attempts) {
+        attempt.cancel(false);
+      }
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+}
@@ -15,11 +15,16 @@ public class StartupCheck {
     // logger
     private static final Log logger = LogFactory.getLog(StartupCheck.class);
 
-    private static boolean status = false;
+    private static volatile boolean status = false;
+
+    // per-step warm-up timings, reported once the application is up
+    private static volatile Map<String, Object> warmup = new LinkedHashMap<>();
 
     public static void up(){ status = true;}
     public static void down(){ status = false;}
 
+    public static void warmup(Map<String, Object> timings){ warmup = timings;}
+
     @ReadOperation
     public CustomData customEndpoint() {
         Map<String, Object> details = new LinkedHashMap<>();
@@ -32,6 +37,7 @@ public class StartupCheck {
 
         CustomData data = new CustomData();
         details.put("StartupEndpoint", "ImageAnalysisApplication Startup Endpoint: Application is ready to serve traffic");
+        details.put("warmup", warmup);
         data.setData(details);
 
         return data;
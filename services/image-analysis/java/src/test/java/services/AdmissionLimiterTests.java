@@ -0,0 +1,77 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@SpringJUnitConfig({AdmissionLimiter.class, SimpleMeterRegistry.class})
+@TestPropertySource(properties = {
+    "admission.initial-limit=2",
+    "admission.min-limit=1",
+    "admission.backoff-ratio=0.5",
+    "admission.latency-target-ms=1000"
+})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class AdmissionLimiterTests {
+
+  @Autowired
+  private AdmissionLimiter admissionLimiter;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Test
+  void rejectsOverTheLimit() {
+    assertTrue(admissionLimiter.tryAcquire());
+    assertTrue(admissionLimiter.tryAcquire());
+    assertFalse(admissionLimiter.tryAcquire());
+
+    assertEquals(1.0, meterRegistry.get("analysis.admission.rejected").counter().count());
+    assertEquals(2.0, meterRegistry.get("analysis.admission.inflight").gauge().value());
+  }
+
+  @Test
+  void overloadHalvesAndSuccessGrowsTheLimit() {
+    assertTrue(admissionLimiter.tryAcquire());
+    admissionLimiter.release(TimeUnit.MILLISECONDS.toNanos(10), true);
+    assertEquals(1.0, admissionLimiter.limit());
+
+    // slow calls count as overload too, but never below the minimum
+    assertTrue(admissionLimiter.tryAcquire());
+    admissionLimiter.release(TimeUnit.SECONDS.toNanos(2), false);
+    assertEquals(1.0, admissionLimiter.limit());
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(admissionLimiter.tryAcquire());
+      admissionLimiter.release(TimeUnit.MILLISECONDS.toNanos(10), false);
+    }
+    assertTrue(admissionLimiter.limit() > 2.0);
+    assertEquals(admissionLimiter.limit(), meterRegistry.get("analysis.admission.limit").gauge().value());
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.testcontainers.containers.FirestoreEmulatorContainer;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.BucketInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+
+import analysis.ImageAnnotations;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Runs the backfill end to end against a storage emulator, the Firestore emulator and a fake
+ * Vision server, resuming one range from a checkpoint left by an earlier run and retrying images
+ * that Vision failed.
+ */
+@SpringJUnitConfig(VisionClientProvider.class)
+@Testcontainers
+public class BackfillJobContainerTests {
+  private static final String BUCKET = "backfill-pictures";
+
+  private static final FakeVisionServer fakeVision = FakeVisionServer.start(0);
+
+  @Container
+  private static final FirestoreEmulatorContainer firestoreEmulator =
+      new FirestoreEmulatorContainer(
+          DockerImageName.parse(
+              "gcr.io/google.com/cloudsdktool/google-cloud-cli:emulators"));
+
+  @Container
+  private static final GenericContainer<?> storageEmulator =
+      new GenericContainer<>(DockerImageName.parse("fsouza/fake-gcs-server"))
+          .withCommand("-scheme", "http")
+          .withExposedPorts(4443);
+
+  @DynamicPropertySource
+  static void visionProperties(DynamicPropertyRegistry registry) {
+    registry.add("vision.endpoint", fakeVision::endpoint);
+    registry.add("vision.plaintext", () -> "true");
+  }
+
+  @Autowired
+  private VisionClientProvider visionClientProvider;
+
+  @AfterAll
+  static void stopServer() throws InterruptedException {
+    fakeVision.close();
+  }
+
+  @Test
+  void resumesFromCheckpointAndSkipsFinishedRanges() throws Exception {
+    Storage storage = storage();
+    storage.create(BucketInfo.of(BUCKET));
+    for (String range : Arrays.asList("a", "b")) {
+      for (int i = 0; i < 20; i++) {
+        storage.create(BlobInfo.newBuilder(BUCKET, String.format("%s-%02d.jpeg", range, i))
+            .setContentType("image/jpeg")
+            .build(), new byte[] {1});
+      }
+    }
+    storage.create(BlobInfo.newBuilder(BUCKET, "a-notes.txt").setContentType("text/plain").build(),
+        new byte[] {1});
+
+    Firestore firestore = firestore();
+    EventService eventService = eventService(firestore);
+
+    // an earlier run got through the first half of range 0 before stopping
+    eventService.storeBackfillLayout("resume-test", "", List.of("b")).get();
+    eventService.storeBackfillCheckpoint("resume-test", 0, "a-09.jpeg", false, List.of()).get();
+
+    BackfillJob.Settings settings = new BackfillJob.Settings(BUCKET);
+    settings.jobId = "resume-test";
+    settings.splitPoints = Arrays.asList("b");
+    settings.parallelism = 2;
+    settings.batchSize = 4;
+    settings.pageSize = 7;
+    settings.maxImagesPerSecond = 1000;
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    int before = fakeVision.imageRequests();
+    assertTrue(new BackfillJob(storage, eventService, visionClientProvider.getClient(), meterRegistry, settings).run());
+    assertEquals(30, fakeVision.imageRequests() - before);
+    assertEquals(30, meterRegistry.counter("analysis.backfill.images", "result", "stored").count());
+
+    assertFalse(picture(firestore, "a-09.jpeg").exists());
+    assertTrue(picture(firestore, "a-10.jpeg").exists());
+    assertTrue(picture(firestore, "b-19.jpeg").exists());
+    assertFalse(picture(firestore, "a-notes.txt").exists());
+    // created is the upload time, so a backfill does not reorder the pictures
+    assertEquals(storage.get(BUCKET, "b-19.jpeg").getCreateTime(),
+        picture(firestore, "b-19.jpeg").getDate("created").getTime());
+
+    DocumentSnapshot checkpoint = eventService.findBackfillCheckpoint("resume-test").get();
+    for (String partition : Arrays.asList("0", "1")) {
+      Map<?, ?> progress = (Map<?, ?>) ((Map<?, ?>) checkpoint.get("partitions")).get(partition);
+      assertEquals(true, progress.get("done"));
+    }
+    assertEquals("b-19.jpeg", ((Map<?, ?>) ((Map<?, ?>) checkpoint.get("partitions")).get("1")).get("after"));
+
+    // a finished job does not call Vision again
+    assertTrue(new BackfillJob(storage, eventService, visionClientProvider.getClient(), new SimpleMeterRegistry(),
+        settings).run());
+    assertEquals(30, fakeVision.imageRequests() - before);
+
+    // other split points would apply the checkpoints to other ranges
+    settings.splitPoints = Arrays.asList("a", "b");
+    assertThrows(IllegalStateException.class, () -> new BackfillJob(storage, eventService,
+        visionClientProvider.getClient(), new SimpleMeterRegistry(), settings).run());
+    assertEquals(30, fakeVision.imageRequests() - before);
+
+    eventService.close();
+    visionClientProvider.shutdown();
+  }
+
+  @Test
+  void retriesFailedImagesNowAndOnTheNextRun() throws Exception {
+    String bucket = "backfill-retries";
+    Storage storage = storage();
+    storage.create(BucketInfo.of(bucket));
+    for (int i = 0; i < 4; i++) {
+      storage.create(BlobInfo.newBuilder(bucket, String.format("c-%02d.jpeg", i))
+          .setContentType("image/jpeg")
+          .build(), new byte[] {1});
+    }
+    // c-01 recovers on the second attempt, c-02 needs more attempts than a run makes
+    fakeVision.failImage("gs://" + bucket + "/c-01.jpeg", 1);
+    fakeVision.failImage("gs://" + bucket + "/c-02.jpeg", 3);
+
+    Firestore firestore = firestore();
+    EventService eventService = eventService(firestore);
+    BackfillJob.Settings settings = new BackfillJob.Settings(bucket);
+    settings.splitPoints = List.of();
+    settings.maxImagesPerSecond = 1000;
+    settings.retryAttempts = 2;
+    settings.retryBackoffMillis = 10;
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    assertFalse(new BackfillJob(storage, eventService, visionClientProvider.getClient(), meterRegistry, settings).run());
+    assertEquals(3, meterRegistry.counter("analysis.backfill.images", "result", "stored").count());
+    assertEquals(1, meterRegistry.counter("analysis.backfill.images", "result", "failed").count());
+    assertTrue(picture(firestore, "c-01.jpeg").exists());
+    assertFalse(picture(firestore, "c-02.jpeg").exists());
+    assertEquals(List.of("c-02.jpeg"), partition(eventService, bucket).get("failed"));
+
+    // the next run only sends the recorded name, which now gets through
+    int before = fakeVision.imageRequests();
+    assertTrue(new BackfillJob(storage, eventService, visionClientProvider.getClient(), new SimpleMeterRegistry(),
+        settings).run());
+    assertEquals(2, fakeVision.imageRequests() - before);
+    assertTrue(picture(firestore, "c-02.jpeg").exists());
+    assertEquals(List.of(), partition(eventService, bucket).get("failed"));
+    assertEquals(true, partition(eventService, bucket).get("done"));
+
+    eventService.close();
+    visionClientProvider.shutdown();
+  }
+
+  private static Storage storage() {
+    return StorageOptions.newBuilder()
+        .setHost("http://" + storageEmulator.getHost() + ":" + storageEmulator.getMappedPort(4443))
+        .setProjectId("fake-test-project-id")
+        .setCredentials(NoCredentials.getInstance())
+        .build()
+        .getService();
+  }
+
+  private static Firestore firestore() {
+    return FirestoreOptions.getDefaultInstance().toBuilder()
+        .setHost(firestoreEmulator.getEmulatorEndpoint())
+        .setCredentials(NoCredentials.getInstance())
+        .setProjectId("fake-test-project-id")
+        .build()
+        .getService();
+  }
+
+  private static EventService eventService(Firestore firestore) {
+    return new EventService(firestore.getOptions(), firestore,
+        new PictureBulkWriter(firestore, 25, 5, 0));
+  }
+
+  private static Map<?, ?> partition(EventService eventService, String jobId) throws Exception {
+    DocumentSnapshot checkpoint = eventService.findBackfillCheckpoint(jobId).get();
+    return (Map<?, ?>) ((Map<?, ?>) checkpoint.get("partitions")).get("0");
+  }
+
+  private static DocumentSnapshot picture(Firestore firestore, String name) throws Exception {
+    return firestore.collection(ImageAnnotations.PICTURES_COLLECTION).document(name).get().get();
+  }
+}
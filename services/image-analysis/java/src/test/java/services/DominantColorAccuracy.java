@@ -0,0 +1,105 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.ColorInfo;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+
+import analysis.DominantColors;
+import analysis.ImageAnnotations;
+
+/**
+ * Compares the locally computed main colour with Vision's IMAGE_PROPERTIES answer for every
+ * picture under a Cloud Storage prefix, using application default credentials:
+ *
+ *   ./mvnw test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=services.DominantColorAccuracy -Dexec.args="my-fixtures-bucket colors/ 128"
+ *
+ * Prints one CSV line per picture (Vision's colour, the local one and their RGB distance) and a
+ * summary: how often the local colour is within 40 of Vision's first colour, and how often it is
+ * within 40 of any of Vision's top three.
+ */
+public class DominantColorAccuracy {
+  private static final double CLOSE = 40;
+
+  public static void main(String[] args) throws Exception {
+    String bucket = args[0];
+    String prefix = args.length > 1 ? args[1] : "";
+    int sampleSize = args.length > 2 ? Integer.parseInt(args[2]) : 128;
+
+    Storage storage = StorageOptions.getDefaultInstance().getService();
+    List<Double> distances = new ArrayList<>();
+    int closeToFirst = 0;
+    int closeToTopThree = 0;
+
+    System.out.println("object,vision,local,distance");
+    try (ImageAnnotatorClient vision = ImageAnnotatorClient.create()) {
+      for (Blob blob : storage.list(bucket, Storage.BlobListOption.prefix(prefix)).iterateAll()) {
+        if (blob.getName().endsWith("/")) {
+          continue;
+        }
+        AnnotateImageRequest request = ImageAnnotations.request(bucket, blob.getName());
+        AnnotateImageResponse response = vision.batchAnnotateImages(List.of(request)).getResponses(0);
+        List<ColorInfo> visionColors = response.getImagePropertiesAnnotation().getDominantColors().getColorsList();
+        if (response.hasError() || visionColors.isEmpty()) {
+          System.out.println(blob.getName() + ",,,skipped");
+          continue;
+        }
+
+        String local = DominantColors.mainColor(blob.getContent(), sampleSize);
+        double distance = distance(local, visionColors.get(0));
+        distances.add(distance);
+        if (distance <= CLOSE) {
+          closeToFirst++;
+        }
+        for (int i = 0; i < Math.min(3, visionColors.size()); i++) {
+          if (distance(local, visionColors.get(i)) <= CLOSE) {
+            closeToTopThree++;
+            break;
+          }
+        }
+        System.out.println(String.format("%s,%s,%s,%.1f",
+            blob.getName(), ImageAnnotations.mainColor(response), local, distance));
+      }
+    }
+
+    if (distances.isEmpty()) {
+      System.out.println("No pictures compared");
+      return;
+    }
+    distances.sort(null);
+    System.out.println(String.format(
+        "%d pictures: median distance %.1f, within %.0f of Vision's first colour %.0f%%, of its top three %.0f%%",
+        distances.size(), distances.get(distances.size() / 2), CLOSE,
+        100.0 * closeToFirst / distances.size(), 100.0 * closeToTopThree / distances.size()));
+  }
+
+  private static double distance(String hex, ColorInfo color) {
+    int rgb = Integer.parseInt(hex.substring(1), 16);
+    double red = ((rgb >> 16) & 0xFF) - color.getColor().getRed();
+    double green = ((rgb >> 8) & 0xFF) - color.getColor().getGreen();
+    double blue = (rgb & 0xFF) - color.getColor().getBlue();
+    return Math.sqrt(red * red + green * green + blue * blue);
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.DeadlineExceededException;
+import com.google.api.gax.rpc.ResourceExhaustedException;
+
+import io.grpc.Status;
+
+public class EventControllerTests {
+
+  @Test
+  void rpcDeadlineCountsAsTimeout() {
+    DeadlineExceededException deadline = new DeadlineExceededException(
+        new RuntimeException("deadline"), GrpcStatusCode.of(Status.Code.DEADLINE_EXCEEDED), false);
+
+    assertTrue(EventController.isTimeout(new CompletionException(new ExecutionException(deadline))));
+    assertTrue(EventController.isTimeout(new CompletionException(new TimeoutException())));
+  }
+
+  @Test
+  void otherFailuresAreNotTimeouts() {
+    ResourceExhaustedException exhausted = new ResourceExhaustedException(
+        new RuntimeException("quota"), GrpcStatusCode.of(Status.Code.RESOURCE_EXHAUSTED), true);
+
+    assertFalse(EventController.isTimeout(new CompletionException(exhausted)));
+    assertFalse(EventController.isTimeout(new CompletionException(new IllegalStateException())));
+    assertFalse(EventController.isTimeout(null));
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@SpringJUnitConfig({EventDeduplicator.class, SimpleMeterRegistry.class})
+public class EventDeduplicatorTests {
+
+  @MockBean
+  private EventService eventService;
+
+  @Autowired
+  private EventDeduplicator eventDeduplicator;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Test
+  void concurrentDeliveriesShareOneResult() throws Exception {
+    AtomicInteger runs = new AtomicInteger();
+    CompletableFuture<ResponseEntity<String>> inFlight = new CompletableFuture<>();
+
+    CompletableFuture<ResponseEntity<String>> first = eventDeduplicator.process("event-1", () -> {
+      runs.incrementAndGet();
+      return inFlight;
+    });
+    CompletableFuture<ResponseEntity<String>> second = eventDeduplicator.process("event-1", () -> {
+      runs.incrementAndGet();
+      return inFlight;
+    });
+    inFlight.complete(new ResponseEntity<>("done", HttpStatus.OK));
+
+    assertEquals(1, runs.get());
+    assertSame(first.get(), second.get());
+    assertEquals(1.0, meterRegistry.get("analysis.events.deduplicated").tag("tier", "memory").counter().count());
+  }
+
+  @Test
+  void failedEventIsProcessedAgain() throws Exception {
+    AtomicInteger runs = new AtomicInteger();
+
+    eventDeduplicator.process("event-2", () -> {
+      runs.incrementAndGet();
+      return CompletableFuture.completedFuture(new ResponseEntity<>("failed", HttpStatus.BAD_REQUEST));
+    }).get();
+    ResponseEntity<String> retry = eventDeduplicator.process("event-2", () -> {
+      runs.incrementAndGet();
+      return CompletableFuture.completedFuture(new ResponseEntity<>("done", HttpStatus.OK));
+    }).get();
+
+    assertEquals(2, runs.get());
+    assertEquals(HttpStatus.OK, retry.getStatusCode());
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+public class EventMappingTests {
+
+  @Test
+  void firstMissingHeaderIsReported() {
+    assertNull(EventMapping.validateHeaders("id", "source", "type", "1.0", "subject"));
+    assertEquals("Missing expected header: ce-id.",
+        EventMapping.validateHeaders(null, "source", "type", "1.0", null));
+    assertEquals("Missing expected header: ce-subject.",
+        EventMapping.validateHeaders("id", "source", "type", "1.0", null));
+  }
+}
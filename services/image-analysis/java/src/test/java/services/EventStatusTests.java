@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.CompletionException;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.NotFoundException;
+
+import io.grpc.Status;
+
+public class EventStatusTests {
+
+  @Test
+  void failureDetailsStayOnTheServer() {
+    NotFoundException notFound = new NotFoundException(
+        new RuntimeException("projects/my-project/databases/(default)/documents/pictures/cat.jpg"),
+        GrpcStatusCode.of(Status.Code.NOT_FOUND), false);
+
+    EventStatus status = EventStatus.of("event-1", null, new CompletionException(notFound));
+    assertEquals(500, status.status());
+    assertEquals("Internal error: NOT_FOUND", status.message());
+
+    assertEquals("Internal error",
+        EventStatus.of("event-2", null, new IllegalStateException("gs://my-bucket/cat.jpg")).message());
+  }
+}
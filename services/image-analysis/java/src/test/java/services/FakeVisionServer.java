@@ -0,0 +1,140 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.cloud.vision.v1.ColorInfo;
+import com.google.cloud.vision.v1.DominantColorsAnnotation;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.cloud.vision.v1.ImageAnnotatorGrpc;
+import com.google.cloud.vision.v1.ImageProperties;
+import com.google.cloud.vision.v1.Likelihood;
+import com.google.cloud.vision.v1.SafeSearchAnnotation;
+import com.google.rpc.Code;
+import com.google.rpc.Status;
+import com.google.type.Color;
+
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Local, plaintext stand-in for the Vision API that answers every image with a canned response
+ * after a fixed delay, or with a RESOURCE_EXHAUSTED error for images set up to fail.
+ */
+class FakeVisionServer implements AutoCloseable {
+
+  private final Server server;
+  private final long latencyMillis;
+  private final AtomicInteger batchCalls = new AtomicInteger();
+  private final AtomicInteger imageRequests = new AtomicInteger();
+  private final Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+
+  private FakeVisionServer(long latencyMillis) throws IOException {
+    this.latencyMillis = latencyMillis;
+    this.server = ServerBuilder.forPort(0)
+        .addService(new FakeImageAnnotator())
+        .build()
+        .start();
+  }
+
+  static FakeVisionServer start(long latencyMillis) {
+    try {
+      return new FakeVisionServer(latencyMillis);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  String endpoint() {
+    return "localhost:" + server.getPort();
+  }
+
+  int batchCalls() {
+    return batchCalls.get();
+  }
+
+  int imageRequests() {
+    return imageRequests.get();
+  }
+
+  /** Answers the next requests for gcsImageUri with an error, the given number of times. */
+  void failImage(String gcsImageUri, int times) {
+    failures.put(gcsImageUri, new AtomicInteger(times));
+  }
+
+  static AnnotateImageResponse cannedResponse() {
+    return AnnotateImageResponse.newBuilder()
+        .addLabelAnnotations(EntityAnnotation.newBuilder().setDescription("Dog").setScore(0.97f))
+        .addLabelAnnotations(EntityAnnotation.newBuilder().setDescription("Pet").setScore(0.91f))
+        .setImagePropertiesAnnotation(ImageProperties.newBuilder()
+            .setDominantColors(DominantColorsAnnotation.newBuilder()
+                .addColors(ColorInfo.newBuilder()
+                    .setColor(Color.newBuilder().setRed(200f).setGreen(120f).setBlue(16f))
+                    .setScore(0.4f)
+                    .setPixelFraction(0.3f))))
+        .setSafeSearchAnnotation(SafeSearchAnnotation.newBuilder()
+            .setAdult(Likelihood.VERY_UNLIKELY)
+            .setMedical(Likelihood.UNLIKELY)
+            .setRacy(Likelihood.VERY_UNLIKELY)
+            .setSpoof(Likelihood.UNLIKELY)
+            .setViolence(Likelihood.VERY_UNLIKELY))
+        .build();
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+  }
+
+  private class FakeImageAnnotator extends ImageAnnotatorGrpc.ImageAnnotatorImplBase {
+    @Override
+    public void batchAnnotateImages(BatchAnnotateImagesRequest request,
+        StreamObserver<BatchAnnotateImagesResponse> responseObserver) {
+      batchCalls.incrementAndGet();
+      imageRequests.addAndGet(request.getRequestsCount());
+      try {
+        Thread.sleep(latencyMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      BatchAnnotateImagesResponse.Builder response = BatchAnnotateImagesResponse.newBuilder();
+      for (int i = 0; i < request.getRequestsCount(); i++) {
+        AtomicInteger remaining = failures.get(request.getRequests(i).getImage().getSource().getGcsImageUri());
+        if (remaining != null && remaining.getAndDecrement() > 0) {
+          response.addResponses(AnnotateImageResponse.newBuilder()
+              .setError(Status.newBuilder()
+                  .setCode(Code.RESOURCE_EXHAUSTED_VALUE)
+                  .setMessage("Quota exceeded")));
+        } else {
+          response.addResponses(cannedResponse());
+        }
+      }
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+    }
+  }
+}
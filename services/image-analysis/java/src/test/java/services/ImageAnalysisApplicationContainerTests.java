@@ -2,15 +2,20 @@ package services;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.google.api.core.ApiFuture;
 import com.google.api.gax.core.CredentialsProvider;
 import com.google.api.gax.core.NoCredentialsProvider;
 import com.google.cloud.NoCredentials;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
 import com.google.cloud.firestore.WriteResult;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import javax.annotation.PostConstruct;
 import org.junit.Before;
@@ -18,6 +23,7 @@ import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -46,6 +52,8 @@ public class ImageAnalysisApplicationContainerTests {
         .build();
     Firestore firestore = options.getService();
 
+    this.options = options;
+    this.firestore = firestore;
     this.eventService = new EventService(options, firestore);
   }
 
@@ -62,6 +70,8 @@ public class ImageAnalysisApplicationContainerTests {
 
   // @Autowired
   private EventService eventService;
+  private FirestoreOptions options;
+  private Firestore firestore;
 
   // @Disabled("Until Spring Boot 3.1 is released")
   @Test
@@ -70,4 +80,60 @@ public class ImageAnalysisApplicationContainerTests {
         Collections.singletonList("label"), "#FFFFFF");
     assertNotNull(writeResult.get().getUpdateTime());
   }
-}
\ No newline at end of file
+
+  @Test
+  void testBulkWritesAreAllStored() throws ExecutionException, InterruptedException {
+    EventService bulkService = new EventService(options, firestore,
+        new PictureBulkWriter(firestore, 25, 5, 0));
+    writesPerSecond(bulkService, "stored", 200);
+    bulkService.flush();
+
+    List<DocumentReference> docs = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      docs.add(firestore.collection("pictures").document("stored-" + i));
+    }
+    for (DocumentSnapshot snapshot : firestore.getAll(docs.toArray(new DocumentReference[0])).get()) {
+      assertTrue(snapshot.exists(), snapshot.getId());
+    }
+  }
+
+  @Test
+  void testWritesAfterFlushGoDirectly() throws ExecutionException, InterruptedException {
+    EventService bulkService = new EventService(options, firestore,
+        new PictureBulkWriter(firestore, 25, 5, 0));
+    bulkService.flush();
+
+    ApiFuture<WriteResult> writeResult = bulkService.storeImage("lateImage",
+        Collections.singletonList("label"), "#FFFFFF");
+    assertNotNull(writeResult.get().getUpdateTime());
+    assertTrue(firestore.collection("pictures").document("lateImage").get().get().exists());
+  }
+
+  @Test
+  @Tag("benchmark")
+  void testBulkWritesPerSecond() throws ExecutionException, InterruptedException {
+    int writes = 500;
+    double direct = writesPerSecond(eventService, "direct", writes);
+
+    EventService bulkService = new EventService(options, firestore,
+        new PictureBulkWriter(firestore, 25, 5, 0));
+    double bulk = writesPerSecond(bulkService, "bulk", writes);
+    bulkService.flush();
+
+    System.out.println(String.format("Firestore emulator: direct %.0f writes/s, bulk %.0f writes/s", direct, bulk));
+    assertTrue(bulk >= direct, "bulk writes should not be slower than direct writes");
+  }
+
+  private static double writesPerSecond(EventService service, String prefix, int writes)
+      throws ExecutionException, InterruptedException {
+    List<ApiFuture<WriteResult>> results = new ArrayList<>(writes);
+    long start = System.nanoTime();
+    for (int i = 0; i < writes; i++) {
+      results.add(service.storeImage(prefix + "-" + i, Collections.singletonList("label"), "#FFFFFF"));
+    }
+    for (ApiFuture<WriteResult> result : results) {
+      assertNotNull(result.get().getUpdateTime());
+    }
+    return writes / ((System.nanoTime() - start) / 1_000_000_000.0);
+  }
+}
@@ -19,15 +19,24 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
 @SpringBootTest(webEnvironment = WebEnvironment.MOCK)
@@ -49,29 +58,36 @@ public class ImageAnalysisApplicationTests {
 	  mockBody = new JSONObject().put("message", message).toString();
 	}
 	
+	// The event handler answers asynchronously, so follow up with the async dispatch when one was started
+	private ResultActions perform(RequestBuilder request) throws Exception {
+	  ResultActions actions = mockMvc.perform(request);
+	  MvcResult result = actions.andReturn();
+	  if (result.getRequest().isAsyncStarted()) {
+		return mockMvc.perform(asyncDispatch(result));
+	  }
+	  return actions;
+	}
+
 	@Test
 	public void addEmptyBody() throws Exception {
-	  mockMvc.perform(post("/")).andExpect(status().isBadRequest());
+	  perform(post("/")).andExpect(status().isBadRequest());
 	}
   
 	@Test
 	public void addNoMessage() throws Exception {
-	  mockMvc
-		  .perform(post("/").contentType(MediaType.APPLICATION_JSON).content("{}"))
+	  perform(post("/").contentType(MediaType.APPLICATION_JSON).content("{}"))
 		  .andExpect(status().isBadRequest());
 	}
   
 	@Test
 	public void addInvalidMimetype() throws Exception {
-	  mockMvc
-		  .perform(post("/").contentType(MediaType.TEXT_HTML).content(mockBody))
+	  perform(post("/").contentType(MediaType.TEXT_HTML).content(mockBody))
 		  .andExpect(status().isUnsupportedMediaType());
 	}
   
 	@Test
 	public void addRequiredHeaders() throws Exception {
-	  mockMvc
-		  .perform(
+	  perform(
 			  post("/")
 				  .contentType(MediaType.APPLICATION_JSON)
 				  .content(mockBody)
@@ -85,8 +101,7 @@ public class ImageAnalysisApplicationTests {
   
 	@Test
 	public void missingRequiredHeaders() throws Exception {
-	  mockMvc
-		  .perform(
+	  perform(
 			  post("/")
 				  .contentType(MediaType.APPLICATION_JSON)
 				  .content(mockBody)
@@ -96,8 +111,7 @@ public class ImageAnalysisApplicationTests {
 				  .header("ce-subject", "test"))
 		  .andExpect(status().isBadRequest());
   
-	  mockMvc
-		  .perform(
+	  perform(
 			  post("/")
 				  .contentType(MediaType.APPLICATION_JSON)
 				  .content(mockBody)
@@ -107,4 +121,65 @@ public class ImageAnalysisApplicationTests {
 				  .header("ce-specversion", "test"))
 		  .andExpect(status().isBadRequest());
 	}
+
+	@Test
+	public void stageMetricsArePublished() throws Exception {
+	  perform(
+			  post("/")
+				  .contentType(MediaType.APPLICATION_JSON)
+				  .content(mockBody)
+				  .header("ce-source", "test")
+				  .header("ce-type", "test")
+				  .header("ce-specversion", "test")
+				  .header("ce-subject", "test"))
+		  .andExpect(status().isBadRequest());
+
+	  mockMvc.perform(get("/actuator/prometheus"))
+		  .andExpect(status().isOk())
+		  .andExpect(content().string(containsString("analysis_stage_duration_seconds_bucket{stage=\"validation\"")))
+		  .andExpect(content().string(containsString("analysis_event_latency_seconds_count{status=\"400\"")));
+	}
+
+	@Test
+	public void structuredEventWithoutSubjectIsRejected() throws Exception {
+	  String event = new JSONObject()
+		  .put("id", "structured-1")
+		  .put("source", "test")
+		  .put("type", "google.cloud.storage.object.v1.finalized")
+		  .put("specversion", "1.0")
+		  .put("data", new JSONObject().put("bucket", "pictures").put("name", "cat.jpg"))
+		  .toString();
+
+	  perform(post("/").contentType(EventController.STRUCTURED_MEDIA_TYPE).content(event))
+		  .andExpect(status().isBadRequest())
+		  .andExpect(content().string("Missing expected header: ce-subject."));
+	}
+
+	@Test
+	public void batchReportsEachEvent() throws Exception {
+	  JSONObject noSubject = new JSONObject()
+		  .put("id", "batch-1")
+		  .put("source", "test")
+		  .put("type", "google.cloud.storage.object.v1.finalized")
+		  .put("specversion", "1.0")
+		  .put("data", new JSONObject().put("bucket", "pictures").put("name", "cat.jpg"));
+	  JSONObject noData = new JSONObject()
+		  .put("id", "batch-2")
+		  .put("source", "test")
+		  .put("type", "google.cloud.storage.object.v1.finalized")
+		  .put("specversion", "1.0")
+		  .put("subject", "objects/dog.jpg");
+	  String batch = new JSONArray().put(noSubject).put(noData).toString();
+
+	  perform(post("/").contentType(EventController.BATCH_MEDIA_TYPE).content(batch))
+		  .andExpect(status().isMultiStatus())
+		  .andExpect(jsonPath("$[0].id").value("batch-1"))
+		  .andExpect(jsonPath("$[0].status").value(400))
+		  .andExpect(jsonPath("$[1].id").value("batch-2"))
+		  .andExpect(jsonPath("$[1].message").value("Missing CloudEvent data."));
+
+	  perform(post("/").contentType(EventController.BATCH_MEDIA_TYPE).content("[]"))
+		  .andExpect(status().isOk())
+		  .andExpect(content().json("[]"));
+	}
 }
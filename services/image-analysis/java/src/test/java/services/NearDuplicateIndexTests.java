@@ -0,0 +1,119 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@SpringJUnitConfig({NearDuplicateIndex.class, SimpleMeterRegistry.class})
+@TestPropertySource(properties = "near-duplicate.max-entries=4")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class NearDuplicateIndexTests {
+
+  @MockBean
+  private EventService eventService;
+
+  @Autowired
+  private NearDuplicateIndex nearDuplicateIndex;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Test
+  void closeHashReusesTheEarlierResult() {
+    when(eventService.storePerceptualHash(anyLong(), any())).thenReturn(ApiFutures.immediateFuture(null));
+    AnalysisResult original = new AnalysisResult(List.of("Cat"), "#7092be", true);
+    long hash = 0x0F0F_3C3C_5A5A_F0F0L;
+
+    nearDuplicateIndex.add(hash, original);
+
+    // three bits off is within the default distance of 8, sixteen is not
+    assertEquals(original, nearDuplicateIndex.find(hash ^ 0b111L));
+    assertNull(nearDuplicateIndex.find(hash ^ 0xFFFFL));
+    assertEquals(1.0, meterRegistry.get("analysis.near-duplicate.lookups").tag("result", "hit").counter().count());
+    assertEquals(1.0, meterRegistry.get("analysis.near-duplicate.lookups").tag("result", "miss").counter().count());
+  }
+
+  @Test
+  void fullIndexDropsItsOldestHashes() {
+    when(eventService.storePerceptualHash(anyLong(), any())).thenReturn(ApiFutures.immediateFuture(null));
+    // one distinct byte set per picture, 16 bits apart from each other
+    for (int i = 0; i < 8; i++) {
+      nearDuplicateIndex.add(0xFFL << (8 * i), new AnalysisResult(List.of("picture-" + i), "#000000", true));
+      assertTrue(nearDuplicateIndex.size() <= 4);
+    }
+
+    assertEquals(4, nearDuplicateIndex.size());
+    assertNull(nearDuplicateIndex.find(0xFFL));
+    assertNull(nearDuplicateIndex.find(0xFFL << 24));
+    assertEquals(List.of("picture-4"), nearDuplicateIndex.find(0xFFL << 32).labels());
+    assertEquals(List.of("picture-7"), nearDuplicateIndex.find(0xFFL << 56).labels());
+  }
+
+  @Test
+  void loadedHashesAreOlderThanThoseAddedMeanwhile() {
+    when(eventService.storePerceptualHash(anyLong(), any())).thenReturn(ApiFutures.immediateFuture(null));
+    nearDuplicateIndex.add(0xFFL, new AnalysisResult(List.of("runtime-0"), "#000000", true));
+    nearDuplicateIndex.add(0xFFL << 8, new AnalysisResult(List.of("runtime-1"), "#000000", true));
+
+    // newest first, as read from Firestore; the last one was also added at runtime
+    int loaded = nearDuplicateIndex.merge(List.of(
+        hashDocument(0xFFL << 16, "loaded-2"),
+        hashDocument(0xFFL << 24, "loaded-1"),
+        hashDocument(0xFFL, "stale-copy")));
+
+    // only two fit under max-entries, the newest ones
+    assertEquals(2, loaded);
+    assertEquals(4, nearDuplicateIndex.size());
+    assertEquals(List.of("runtime-0"), nearDuplicateIndex.find(0xFFL).labels());
+
+    // the next runtime add drops the loaded hashes, not the runtime ones
+    nearDuplicateIndex.add(0xFFL << 32, new AnalysisResult(List.of("runtime-2"), "#000000", true));
+    assertNull(nearDuplicateIndex.find(0xFFL << 16));
+    assertNull(nearDuplicateIndex.find(0xFFL << 24));
+    assertEquals(List.of("runtime-0"), nearDuplicateIndex.find(0xFFL).labels());
+    assertEquals(List.of("runtime-2"), nearDuplicateIndex.find(0xFFL << 32).labels());
+  }
+
+  private static QueryDocumentSnapshot hashDocument(long hash, String label) {
+    QueryDocumentSnapshot document = mock(QueryDocumentSnapshot.class);
+    when(document.getLong("hash")).thenReturn(hash);
+    when(document.get("labels")).thenReturn(List.of(label));
+    when(document.getString("color")).thenReturn("#000000");
+    when(document.getBoolean("safe")).thenReturn(true);
+    return document;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.core.ApiFutures;
+
+import services.actuator.CustomData;
+import services.actuator.StartupCheck;
+
+@SpringJUnitConfig({StartupWarmer.class, ObjectMapper.class})
+public class StartupWarmerTests {
+
+  @MockBean
+  private VisionClientProvider visionClientProvider;
+
+  @MockBean
+  private EventService eventService;
+
+  @MockBean
+  private LocalColorExtractor localColorExtractor;
+
+  @Autowired
+  private StartupWarmer startupWarmer;
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void readyWithTimingsEvenIfAStepFails() throws Exception {
+    // no client: the Vision step fails, the others succeed
+    when(visionClientProvider.getClient()).thenThrow(new IOException("no credentials"));
+    when(eventService.findProcessedEvent(anyString())).thenReturn(ApiFutures.immediateFuture(null));
+    StartupCheck.down();
+
+    startupWarmer.runSteps();
+
+    CustomData data = new StartupCheck().customEndpoint();
+    assertNotNull(data);
+    Map<String, Object> warmup = (Map<String, Object>) data.getData().get("warmup");
+    assertTrue(((Map<String, Object>) warmup.get("vision")).get("result").toString().startsWith("failed"));
+    assertEquals("ok", ((Map<String, Object>) warmup.get("firestore")).get("result"));
+    assertEquals("ok", ((Map<String, Object>) warmup.get("jackson")).get("result"));
+    assertEquals("ok", ((Map<String, Object>) warmup.get("protobuf")).get("result"));
+    assertNotNull(warmup.get("totalMillis"));
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.Feature;
+import com.google.cloud.vision.v1.Image;
+import com.google.cloud.vision.v1.ImageSource;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@SpringJUnitConfig({VisionClientProvider.class, VisionBatcher.class, SimpleMeterRegistry.class})
+public class VisionBatcherTests {
+
+  private static final FakeVisionServer fakeVision = FakeVisionServer.start(50);
+
+  @DynamicPropertySource
+  static void visionProperties(DynamicPropertyRegistry registry) {
+    registry.add("vision.endpoint", fakeVision::endpoint);
+    registry.add("vision.plaintext", () -> "true");
+    registry.add("vision.batch.max-size", () -> "16");
+    registry.add("vision.batch.max-wait-ms", () -> "200");
+  }
+
+  @Autowired
+  private VisionBatcher visionBatcher;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @AfterAll
+  static void stopServer() throws InterruptedException {
+    fakeVision.close();
+  }
+
+  @Test
+  void burstIsSentAsFullBatches() throws Exception {
+    int callsBefore = fakeVision.batchCalls();
+    DistributionSummary batchSize = meterRegistry.get("analysis.vision.batch.size").summary();
+    long batchesBefore = batchSize.count();
+    double imagesBefore = batchSize.totalAmount();
+
+    List<CompletableFuture<AnnotateImageResponse>> futures = new ArrayList<>();
+    for (int i = 0; i < 32; i++) {
+      futures.add(visionBatcher.annotate(request("picture-" + i + ".jpeg")));
+    }
+    for (CompletableFuture<AnnotateImageResponse> future : futures) {
+      assertEquals(FakeVisionServer.cannedResponse(), future.get(5, TimeUnit.SECONDS));
+    }
+
+    assertEquals(2, fakeVision.batchCalls() - callsBefore);
+    assertEquals(2, batchSize.count() - batchesBefore);
+    assertEquals(32.0, batchSize.totalAmount() - imagesBefore);
+  }
+
+  @Test
+  void lonelyRequestIsSentAfterLinger() throws Exception {
+    int callsBefore = fakeVision.batchCalls();
+
+    AnnotateImageResponse response = visionBatcher.annotate(request("alone.jpeg")).get(5, TimeUnit.SECONDS);
+
+    assertEquals(FakeVisionServer.cannedResponse(), response);
+    assertEquals(1, fakeVision.batchCalls() - callsBefore);
+  }
+
+  @Test
+  void requestExpiredInQueueIsNotSent() throws Exception {
+    int imagesBefore = fakeVision.imageRequests();
+
+    // the linger time is 200 ms, so the deadline passes before the batch goes out
+    CompletableFuture<AnnotateImageResponse> future = visionBatcher.annotate(request("late.jpeg"),
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10));
+
+    ExecutionException failure = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+    assertInstanceOf(TimeoutException.class, failure.getCause());
+    assertEquals(0, fakeVision.imageRequests() - imagesBefore);
+  }
+
+  @Test
+  void shortDeadlineDoesNotFailItsBatchMates() throws Exception {
+    // sent after the 200 ms linger with about 20 ms left, less than the fake server's 50 ms
+    CompletableFuture<AnnotateImageResponse> hurried = visionBatcher.annotate(request("hurried.jpeg"),
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(220));
+    CompletableFuture<AnnotateImageResponse> patient = visionBatcher.annotate(request("patient.jpeg"),
+        System.nanoTime() + TimeUnit.SECONDS.toNanos(5));
+
+    assertEquals(FakeVisionServer.cannedResponse(), patient.get(5, TimeUnit.SECONDS));
+    ExecutionException failure = assertThrows(ExecutionException.class, () -> hurried.get(5, TimeUnit.SECONDS));
+    assertInstanceOf(TimeoutException.class, failure.getCause());
+  }
+
+  private static AnnotateImageRequest request(String fileName) {
+    return AnnotateImageRequest.newBuilder()
+        .addFeatures(Feature.newBuilder().setType(Feature.Type.LABEL_DETECTION))
+        .setImage(Image.newBuilder()
+            .setSource(ImageSource.newBuilder().setGcsImageUri("gs://bucket/" + fileName)))
+        .build();
+  }
+}
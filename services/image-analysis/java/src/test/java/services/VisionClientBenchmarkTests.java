@@ -0,0 +1,135 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.cloud.vision.v1.Feature;
+import com.google.cloud.vision.v1.Image;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.cloud.vision.v1.ImageSource;
+
+/**
+ * Compares per-event latency of creating a Vision client for every event (the previous behaviour)
+ * against reusing the pooled client held by {@link VisionClientProvider}, using a local fake server.
+ * The latency comparison is tagged benchmark and only runs with -Pjmh.
+ */
+@SpringJUnitConfig(VisionClientProvider.class)
+public class VisionClientBenchmarkTests {
+  private static final int WARMUP_EVENTS = 10;
+  private static final int MEASURED_EVENTS = 100;
+
+  private static final FakeVisionServer fakeVision = FakeVisionServer.start(0);
+
+  @DynamicPropertySource
+  static void visionProperties(DynamicPropertyRegistry registry) {
+    registry.add("vision.endpoint", fakeVision::endpoint);
+    registry.add("vision.plaintext", () -> "true");
+  }
+
+  @Autowired
+  private VisionClientProvider visionClientProvider;
+
+  @AfterEach
+  void closeClient() {
+    visionClientProvider.shutdown();
+  }
+
+  @AfterAll
+  static void stopServer() throws InterruptedException {
+    fakeVision.close();
+  }
+
+  @Test
+  void pooledClientIsReusedAcrossEvents() throws Exception {
+    int before = fakeVision.imageRequests();
+    ImageAnnotatorClient vision = visionClientProvider.getClient();
+    for (int i = 0; i < 5; i++) {
+      assertSame(vision, visionClientProvider.getClient());
+      annotate(visionClientProvider.getClient());
+    }
+    assertEquals(before + 5, fakeVision.imageRequests());
+  }
+
+  @Test
+  @Tag("benchmark")
+  void pooledClientBeatsClientPerEvent() throws Exception {
+    int before = fakeVision.imageRequests();
+    long[] perEvent = measure(() -> {
+      try (ImageAnnotatorClient vision = ImageAnnotatorClient.create(visionClientProvider.settings())) {
+        annotate(vision);
+      }
+    });
+    long[] pooled = measure(() -> annotate(visionClientProvider.getClient()));
+
+    System.out.println(String.format("Vision client per event: p50=%.2f ms p99=%.2f ms",
+        percentile(perEvent, 0.50), percentile(perEvent, 0.99)));
+    System.out.println(String.format("Pooled Vision client:    p50=%.2f ms p99=%.2f ms",
+        percentile(pooled, 0.50), percentile(pooled, 0.99)));
+
+    assertEquals(before + 2 * (WARMUP_EVENTS + MEASURED_EVENTS), fakeVision.imageRequests());
+    assertTrue(percentile(pooled, 0.50) < percentile(perEvent, 0.50));
+  }
+
+  private static void annotate(ImageAnnotatorClient vision) {
+    AnnotateImageRequest request = AnnotateImageRequest.newBuilder()
+        .addFeatures(Feature.newBuilder().setType(Feature.Type.LABEL_DETECTION))
+        .setImage(Image.newBuilder()
+            .setSource(ImageSource.newBuilder().setGcsImageUri("gs://bucket/picture.jpeg")))
+        .build();
+    BatchAnnotateImagesResponse response = vision.batchAnnotateImages(Collections.singletonList(request));
+    assertEquals(1, response.getResponsesCount());
+  }
+
+  private static long[] measure(Event event) throws Exception {
+    for (int i = 0; i < WARMUP_EVENTS; i++) {
+      event.run();
+    }
+    long[] samples = new long[MEASURED_EVENTS];
+    for (int i = 0; i < MEASURED_EVENTS; i++) {
+      long start = System.nanoTime();
+      event.run();
+      samples[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(samples);
+    return samples;
+  }
+
+  private static double percentile(long[] sortedNanos, double percentile) {
+    int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+    return sortedNanos[Math.max(index, 0)] / 1_000_000.0;
+  }
+
+  private interface Event {
+    void run() throws Exception;
+  }
+}
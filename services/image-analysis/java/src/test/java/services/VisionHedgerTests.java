@@ -0,0 +1,131 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@SpringJUnitConfig({VisionHedger.class, SimpleMeterRegistry.class})
+@TestPropertySource(properties = {
+    "vision.hedge.enabled=true",
+    "vision.hedge.percentile=0.5",
+    "vision.hedge.max-ratio=0.5"
+})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class VisionHedgerTests {
+
+  @MockBean
+  private VisionBatcher visionBatcher;
+
+  @Autowired
+  private VisionHedger visionHedger;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Test
+  void hedgeDelayIsThePercentileOfRecentLatencies() {
+    for (int i = 1; i <= 16; i++) {
+      visionHedger.recordLatency(TimeUnit.MILLISECONDS.toNanos(i));
+    }
+    // too few samples to hedge yet
+    assertEquals(-1, visionHedger.allowHedgeAfter());
+
+    for (int i = 17; i <= 32; i++) {
+      visionHedger.recordLatency(TimeUnit.MILLISECONDS.toNanos(i));
+    }
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(17), visionHedger.allowHedgeAfter());
+  }
+
+  @Test
+  void hedgesAreCappedByTheTokenBucket() {
+    // max-ratio 0.5: one hedge token for every two calls
+    visionHedger.allowHedgeAfter();
+    assertFalse(visionHedger.takeHedgeToken());
+    visionHedger.allowHedgeAfter();
+    assertTrue(visionHedger.takeHedgeToken());
+    assertFalse(visionHedger.takeHedgeToken());
+
+    // a long quiet spell banks at most 10 hedges
+    for (int i = 0; i < 100; i++) {
+      visionHedger.allowHedgeAfter();
+    }
+    for (int i = 0; i < 10; i++) {
+      assertTrue(visionHedger.takeHedgeToken());
+    }
+    assertFalse(visionHedger.takeHedgeToken());
+  }
+
+  @Test
+  void firstAnswerWinsAndTheSlowAttemptIsCancelled() throws Exception {
+    for (int i = 0; i < 32; i++) {
+      visionHedger.recordLatency(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    // with the refill of the call itself, this leaves one token for the hedge
+    visionHedger.allowHedgeAfter();
+    AnnotateImageResponse hedgedResponse = AnnotateImageResponse.getDefaultInstance();
+    CompletableFuture<AnnotateImageResponse> slow = new CompletableFuture<>();
+    when(visionBatcher.annotate(any(), anyLong()))
+        .thenReturn(slow, CompletableFuture.completedFuture(hedgedResponse));
+
+    AnnotateImageResponse response = visionHedger.annotate(AnnotateImageRequest.getDefaultInstance(),
+        System.nanoTime() + TimeUnit.SECONDS.toNanos(5)).get(5, TimeUnit.SECONDS);
+
+    assertSame(hedgedResponse, response);
+    assertTrue(slow.isCancelled());
+    assertEquals(1.0, meterRegistry.get("analysis.vision.hedges").tag("result", "sent").counter().count());
+    assertEquals(1.0, meterRegistry.get("analysis.vision.hedges").tag("result", "won").counter().count());
+  }
+
+  @Test
+  void unansweredCallFailsAtTheDeadline() {
+    CompletableFuture<AnnotateImageResponse> never = new CompletableFuture<>();
+    when(visionBatcher.annotate(any(), anyLong())).thenReturn(never);
+
+    CompletableFuture<AnnotateImageResponse> result = visionHedger.annotate(AnnotateImageRequest.getDefaultInstance(),
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+
+    ExecutionException failure = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+    assertInstanceOf(TimeoutException.class, failure.getCause());
+    assertTrue(never.isCancelled());
+    assertEquals(1.0, meterRegistry.get("analysis.vision.deadline.exceeded").counter().count());
+  }
+}
@@ -0,0 +1,54 @@
+#!/bin/bash
+# Compares time-to-first-event of the jit, cds, crac and native images.
+# Build them first with:
+#   ./mvnw spring-boot:build-image -Pjit
+#   ./mvnw spring-boot:build-image -Pcds
+#   ./crac/checkpoint.sh
+#   ./mvnw spring-boot:build-image -Pnative
+# Credentials and project are passed through DOCKER_ARGS, as for crac/checkpoint.sh.
+# The first event is a CloudEvent with every header, for EVENT_BUCKET/EVENT_FILE when set,
+# so it exercises binding, validation and, with a real picture, Vision and Firestore.
+set -e
+
+PORT=${PORT:-8089}
+RUNS=${RUNS:-3}
+BUCKET=${EVENT_BUCKET:-uploaded-pictures}
+FILE=${EVENT_FILE:-startup-benchmark.jpeg}
+
+now_ms() { date +%s%3N; }
+
+first_event() {
+  curl -s -o /dev/null -w "%{http_code}" -X POST "http://localhost:$PORT/" \
+    -H "Content-Type: application/json" \
+    -H "ce-id: startup-benchmark-$(now_ms)" \
+    -H "ce-source: //storage.googleapis.com/projects/_/buckets/$BUCKET" \
+    -H "ce-type: google.cloud.storage.object.v1.finalized" \
+    -H "ce-specversion: 1.0" \
+    -H "ce-subject: objects/$FILE" \
+    -d "{\"name\":\"$FILE\",\"bucket\":\"$BUCKET\"}"
+}
+
+run() {
+  local mode=$1 image=$2 privileged=$3
+  for i in $(seq 1 "$RUNS"); do
+    docker rm -f startup-benchmark >/dev/null 2>&1 || true
+    local start=$(now_ms)
+    docker run -d --name startup-benchmark $privileged -p "$PORT:8080" $DOCKER_ARGS "$image" >/dev/null
+
+    until [ "$(curl -s -o /dev/null -w '%{http_code}' "http://localhost:$PORT/actuator/startup")" = "200" ]; do
+      sleep 0.02
+    done
+    local ready=$(now_ms)
+    local status=$(first_event)
+    local done=$(now_ms)
+
+    printf "%-7s run %d  ready %6d ms  first event %6d ms (HTTP %s)\n" \
+      "$mode" "$i" $((ready - start)) $((done - start)) "$status"
+    docker rm -f startup-benchmark >/dev/null
+  done
+}
+
+run jit image-analysis-maven-jit ""
+run cds image-analysis-maven-cds ""
+run crac image-analysis-crac "--privileged"
+run native image-analysis-maven-native ""